@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.JDOMException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eus.ixa.ixa.pipe.ml.utils.Flags;
+import eus.ixa.ixa.pipe.opinion.Annotate;
+import eus.ixa.ixa.pipe.opinion.AnnotateAbsa;
+import eus.ixa.ixa.pipe.opinion.AnnotatePolarity;
+import eus.ixa.ixa.pipe.opinion.AnnotateTargets;
+import eus.ixa.ixa.pipe.opinion.DocAnnotateAspects;
+import eus.ixa.ixa.pipe.opinion.SeqAnnotateAspects;
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Annotation of whole documents by each annotator. The models are not part
+ * of the distribution, so they are passed as parameters, for example
+ * {@code -p targetModel=en-ote.bin -p polarityModel=en-pol.bin}. The
+ * sentences counter gives the per-sentence throughput; the documents of one
+ * sentence give the per-sentence latency.
+ *
+ * @author ragerri
+ * @version 2018-05-10
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnnotatorBenchmark {
+
+  /**
+   * The annotator: ote, seqAspects, docAspects, pol, polDict or absa.
+   */
+  @Param({ "ote", "seqAspects", "docAspects", "pol", "polDict", "absa" })
+  public String annotator;
+  /**
+   * The number of sentences of the document.
+   */
+  @Param({ "1", "100" })
+  public int sentences;
+  /**
+   * The number of tokens of each sentence.
+   */
+  @Param({ "10", "40" })
+  public int sentenceLength;
+  /**
+   * The proportion of target and polar words.
+   */
+  @Param({ "0.1", "0.5" })
+  public double density;
+  /**
+   * The opinion target model, used by ote and absa.
+   */
+  @Param({ "" })
+  public String targetModel;
+  /**
+   * The sequence labeling aspect model, used by seqAspects.
+   */
+  @Param({ "" })
+  public String aspectModel;
+  /**
+   * The document classification aspect model, used by docAspects.
+   */
+  @Param({ "" })
+  public String docAspectModel;
+  /**
+   * The polarity model, used by pol, polDict and absa.
+   */
+  @Param({ "" })
+  public String polarityModel;
+  /**
+   * The clearFeatures option of the annotators.
+   */
+  @Param({ Flags.DEFAULT_FEATURE_FLAG })
+  public String clearFeatures;
+
+  private Annotate annotate;
+  private String naf;
+  private KAFDocument kaf;
+
+  /**
+   * The number of sentences annotated.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Sentences {
+    public long sentences;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    naf = SyntheticCorpus.generateNAF(sentences, sentenceLength, density);
+    switch (annotator) {
+    case "ote":
+      annotate = new AnnotateTargets(properties(required(targetModel, "targetModel")));
+      break;
+    case "seqAspects":
+      annotate = new SeqAnnotateAspects(properties(required(aspectModel, "aspectModel")));
+      break;
+    case "docAspects":
+      annotate = new DocAnnotateAspects(properties(required(docAspectModel, "docAspectModel")));
+      break;
+    case "pol":
+      annotate = new AnnotatePolarity(polarityProperties(Flags.DEFAULT_DICT_OPTION));
+      break;
+    case "polDict":
+      annotate = new AnnotatePolarity(polarityProperties(
+          SyntheticCorpus.writeLexicon().getPath()));
+      break;
+    case "absa":
+      annotate = new AnnotateAbsa(properties(required(targetModel, "targetModel")),
+          polarityProperties(Flags.DEFAULT_DICT_OPTION));
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown annotator " + annotator);
+    }
+  }
+
+  /**
+   * Parse a fresh copy of the document, as annotating adds an opinion layer.
+   */
+  @Setup(Level.Invocation)
+  public void parse() throws IOException, JDOMException {
+    kaf = KAFDocument.createFromStream(new StringReader(naf));
+  }
+
+  @Benchmark
+  public KAFDocument annotate(Sentences counter) {
+    annotate.annotate(kaf);
+    counter.sentences += sentences;
+    return kaf;
+  }
+
+  private static String required(String model, String name) {
+    if (model.isEmpty()) {
+      throw new IllegalStateException("Pass the model with -p " + name + "=<model>");
+    }
+    return model;
+  }
+
+  private Properties properties(String model) {
+    Properties properties = new Properties();
+    properties.setProperty("model", model);
+    properties.setProperty("language", "en");
+    properties.setProperty("clearFeatures", clearFeatures);
+    return properties;
+  }
+
+  private Properties polarityProperties(String dictionary) {
+    Properties properties = properties(required(polarityModel, "polarityModel"));
+    properties.setProperty("dictionary", dictionary);
+    return properties;
+  }
+
+}
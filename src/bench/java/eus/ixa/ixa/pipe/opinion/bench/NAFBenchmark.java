@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.JDOMException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eus.ixa.ixa.pipe.opinion.NAFSerializer;
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Parsing and serialization of NAF documents, measured apart from the
+ * annotation.
+ *
+ * @author ragerri
+ * @version 2018-05-10
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NAFBenchmark {
+
+  /**
+   * The number of sentences of the document.
+   */
+  @Param({ "1", "100", "1000" })
+  public int sentences;
+  /**
+   * The number of tokens of each sentence.
+   */
+  @Param({ "10", "40" })
+  public int sentenceLength;
+  /**
+   * The proportion of target and polar words.
+   */
+  @Param({ "0.1", "0.5" })
+  public double density;
+
+  private String naf;
+  private KAFDocument kaf;
+
+  @Setup
+  public void setUp() throws IOException, JDOMException {
+    naf = SyntheticCorpus.generateNAF(sentences, sentenceLength, density);
+    kaf = KAFDocument.createFromStream(new StringReader(naf));
+  }
+
+  @Benchmark
+  public KAFDocument parse() throws IOException, JDOMException {
+    return KAFDocument.createFromStream(new StringReader(naf));
+  }
+
+  @Benchmark
+  public String serializeToString() {
+    return kaf.toString();
+  }
+
+  @Benchmark
+  public void serializeToWriter(Blackhole blackhole) throws IOException {
+    NAFSerializer.write(kaf, new BlackholeWriter(blackhole));
+  }
+
+  /**
+   * Writer consuming the output without keeping it.
+   */
+  static final class BlackholeWriter extends Writer {
+
+    private final Blackhole blackhole;
+
+    BlackholeWriter(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      blackhole.consume(cbuf);
+      blackhole.consume(len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+}
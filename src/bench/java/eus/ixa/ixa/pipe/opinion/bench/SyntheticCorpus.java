@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+/**
+ * Synthetic English restaurant review corpora for the benchmarks. The
+ * documents are generated from a fixed seed, so every run annotates the same
+ * text. The density is the proportion of tokens taken from the opinion
+ * target and polar word vocabularies; the rest are function words, so that
+ * denser documents have more targets and more lexicon hits.
+ *
+ * @author ragerri
+ * @version 2018-05-10
+ *
+ */
+public final class SyntheticCorpus {
+
+  private static final String[] TARGETS = { "food", "service", "staff", "pizza",
+      "waiter", "wine", "dessert", "menu", "place", "prices", "atmosphere",
+      "sushi", "pasta", "music", "decor", "portions", "kitchen", "bar" };
+  private static final String[] POLAR = { "great", "terrible", "delicious",
+      "rude", "friendly", "awful", "excellent", "bland", "amazing", "slow",
+      "fresh", "overpriced", "lovely", "cold", "perfect", "noisy" };
+  private static final String[] POLARITIES = { "positive", "negative",
+      "positive", "negative", "positive", "negative", "positive", "negative",
+      "positive", "negative", "positive", "negative", "positive", "negative",
+      "positive", "negative" };
+  private static final String[] FUNCTION = { "the", "was", "and", "a", "we",
+      "it", "of", "to", "but", "very", "really", "there", "with", "for", "is",
+      "our", "in", "they", "at", "quite" };
+
+  private SyntheticCorpus() {
+  }
+
+  /**
+   * Generate a document.
+   * @param sentences the number of sentences
+   * @param sentenceLength the number of tokens of each sentence, including
+   *          the final stop
+   * @param density the proportion of target and polar words, from 0 to 1
+   * @param seed the seed of the generator
+   * @return the document with text and term layers
+   */
+  public static KAFDocument generate(final int sentences,
+      final int sentenceLength, final double density, final long seed) {
+    Random random = new Random(seed);
+    KAFDocument kaf = new KAFDocument("en", "v3");
+    int offset = 0;
+    for (int sent = 1; sent <= sentences; sent++) {
+      for (int i = 0; i < sentenceLength; i++) {
+        String form;
+        String pos;
+        if (i == sentenceLength - 1) {
+          form = ".";
+          pos = "O";
+        } else if (random.nextDouble() < density) {
+          if (random.nextBoolean()) {
+            form = TARGETS[random.nextInt(TARGETS.length)];
+            pos = "N";
+          } else {
+            form = POLAR[random.nextInt(POLAR.length)];
+            pos = "G";
+          }
+        } else {
+          form = FUNCTION[random.nextInt(FUNCTION.length)];
+          pos = "O";
+        }
+        WF wf = kaf.newWF(offset, form, sent);
+        offset += form.length() + 1;
+        List<WF> wfs = new ArrayList<>(1);
+        wfs.add(wf);
+        Term term = kaf.newTerm("open", form, pos, KAFDocument.newWFSpan(wfs));
+        term.setMorphofeat(pos);
+      }
+    }
+    return kaf;
+  }
+
+  /**
+   * Generate a document serialized as NAF.
+   * @param sentences the number of sentences
+   * @param sentenceLength the number of tokens of each sentence
+   * @param density the proportion of target and polar words
+   * @return the NAF document
+   */
+  public static String generateNAF(final int sentences,
+      final int sentenceLength, final double density) {
+    return generate(sentences, sentenceLength, density, 42L).toString();
+  }
+
+  /**
+   * Write the polarity lexicon of the polar vocabulary to a temporary file.
+   * @return the lexicon file, deleted on exit
+   * @throws IOException if io problems
+   */
+  public static File writeLexicon() throws IOException {
+    File lexicon = File.createTempFile("synthetic-lexicon", ".txt");
+    lexicon.deleteOnExit();
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(lexicon),
+        StandardCharsets.UTF_8)) {
+      for (int i = 0; i < POLAR.length; i++) {
+        writer.write(POLAR[i] + "\t" + POLARITIES[i] + "\n");
+      }
+    }
+    return lexicon;
+  }
+
+}
@@ -1,5 +1,8 @@
 package eus.ixa.ixa.pipe.opinion;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import ixa.kaflib.KAFDocument;
 
 public interface Annotate {
@@ -17,4 +20,15 @@ public interface Annotate {
    */
   public String annotateToNAF(KAFDocument kaf);
 
+  /**
+   * Serializes the NAF containing opinion layer with aspects straight to
+   * a writer, without building the document string.
+   * @param kaf the NAF document
+   * @param writer the output, which is not closed
+   * @throws IOException if io problems
+   */
+  public default void annotateToNAF(KAFDocument kaf, Writer writer) throws IOException {
+    NAFSerializer.write(kaf, writer);
+  }
+
 }
@@ -18,18 +18,14 @@ package eus.ixa.ixa.pipe.opinion;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
-import eus.ixa.ixa.pipe.ml.StatisticalDocumentClassifier;
-import eus.ixa.ixa.pipe.ml.StatisticalSequenceLabeler;
 import eus.ixa.ixa.pipe.ml.sequence.SequenceLabel;
 import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Opinion;
 import ixa.kaflib.Opinion.OpinionExpression;
 import ixa.kaflib.Term;
-import ixa.kaflib.WF;
 
 /**
  * Annotation class for Aspect Based Sentiment Analysis (ABSA).
@@ -43,22 +39,27 @@ public class AnnotateAbsa implements Annotate {
   /**
    * The NameFinder to do the opinion target extraction.
    */
-  private StatisticalSequenceLabeler oteExtractor;
+  private ModelRegistry.Labeler oteExtractor;
   /**
    * The Document classifier to annotate polarity.
    */
-  private StatisticalDocumentClassifier polTagger;
+  private ModelRegistry.Classifier polTagger;
   /**
    * Clear features after every sentence or when a -DOCSTART- mark appears.
    */
   private String clearFeatures;
+  /**
+   * The number of polarity classifications saved by classifying each
+   * sentence once instead of once per target.
+   */
+  private long savedClassifications = 0;
 
   
   public AnnotateAbsa(final Properties oteProperties, Properties polProperties) throws IOException {
 
     this.clearFeatures = oteProperties.getProperty("clearFeatures");
-    oteExtractor = new StatisticalSequenceLabeler(oteProperties);
-    polTagger = new StatisticalDocumentClassifier(polProperties);
+    oteExtractor = ModelRegistry.newLabeler(oteProperties);
+    polTagger = ModelRegistry.newClassifier(polProperties);
   }
   
   /**
@@ -67,43 +68,26 @@ public class AnnotateAbsa implements Annotate {
    */
   public final void annotate(final KAFDocument kaf) {
 
-    List<List<WF>> sentences = kaf.getSentences();
-    for (List<WF> sentence : sentences) {
+    TermIndex termIndex = TermIndex.of(kaf);
+    for (int sent = 0; sent < termIndex.getNumSentences(); sent++) {
+      Deadline.check(sent, termIndex.getNumSentences());
       //process each sentence
-      String[] tokens = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-      }
+      String[] tokens = termIndex.getTokens(sent);
       if (clearFeatures.equalsIgnoreCase("docstart") && tokens[0].startsWith("-DOCSTART-")) {
         oteExtractor.clearAdaptiveData();
         polTagger.clearFeatureData();
       }
+      if (termIndex.isUpToDate(sent)) {
+        continue;
+      }
       //target-aspects
       //TODO include aspects via document classification
       List<SequenceLabel> names = oteExtractor.getSequences(tokens);
-      for (SequenceLabel name : names) {
-        Integer startIndex = name.getSpan().getStart();
-        Integer endIndex = name.getSpan().getEnd();
-        List<Term> nameTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, startIndex, endIndex)));
-        ixa.kaflib.Span<Term> oteSpan = KAFDocument.newTermSpan(nameTerms);
-        //Polarity Classification
-        //String[] tokensAroundTarget = getTokensFromTerms(nameTerms);
+      if (!names.isEmpty()) {
+        //sentence polarity and its span are the same for every target
         String polarity = polTagger.classify(tokens);
-        List<Term> polarityTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, 0, tokens.length)));
-        //TODO expression span, perhaps heuristic around ote?
-        ixa.kaflib.Span<Term> polaritySpan = KAFDocument.newTermSpan(polarityTerms);
-        //create Opinion layer
-        Opinion opinion = kaf.newOpinion();
-        opinion.createOpinionTarget(oteSpan);
-        OpinionExpression opExpression = opinion.createOpinionExpression(polaritySpan);
-        //add aspect
-        opExpression.setSentimentProductFeature(name.getType());
-        //add polarity
-        opExpression.setPolarity(polarity);
+        savedClassifications += names.size() - 1;
+        addOpinions(kaf, termIndex, sent, names, polarity);
       }
       if (clearFeatures.equalsIgnoreCase("yes")) {
         oteExtractor.clearAdaptiveData();
@@ -114,6 +98,45 @@ public class AnnotateAbsa implements Annotate {
     polTagger.clearFeatureData();
   }
 
+  /**
+   * Add an opinion for every target of a sentence, with the aspect of the
+   * target and the polarity of the sentence.
+   * @param kaf the KAFDocument
+   * @param termIndex the term index of the document
+   * @param sent the index of the sentence
+   * @param names the targets of the sentence
+   * @param polarity the polarity of the sentence
+   */
+  static void addOpinions(final KAFDocument kaf, final TermIndex termIndex,
+      final int sent, final List<SequenceLabel> names, final String polarity) {
+    List<Term> polarityTerms = termIndex.getTerms(sent);
+    for (SequenceLabel name : names) {
+      Integer startIndex = name.getSpan().getStart();
+      Integer endIndex = name.getSpan().getEnd();
+      List<Term> nameTerms = termIndex.getTerms(sent, startIndex, endIndex);
+      ixa.kaflib.Span<Term> oteSpan = KAFDocument.newTermSpan(nameTerms);
+      //TODO expression span, perhaps heuristic around ote?
+      ixa.kaflib.Span<Term> polaritySpan = KAFDocument.newTermSpan(polarityTerms);
+      //create Opinion layer
+      Opinion opinion = kaf.newOpinion();
+      opinion.createOpinionTarget(oteSpan);
+      OpinionExpression opExpression = opinion.createOpinionExpression(polaritySpan);
+      //add aspect
+      opExpression.setSentimentProductFeature(name.getType());
+      //add polarity
+      opExpression.setPolarity(polarity);
+    }
+  }
+
+  /**
+   * Get the number of polarity classifications saved so far by reusing the
+   * sentence polarity for every target of the sentence.
+   * @return the number of classifier calls saved
+   */
+  public final long getSavedClassifications() {
+    return savedClassifications;
+  }
+
   /**
    * Output annotation as NAF.
    * 
@@ -124,6 +147,7 @@ public class AnnotateAbsa implements Annotate {
   public final String annotateToNAF(KAFDocument kaf) {
     return kaf.toString();
   }
+
   
   private String[] getTokensFromTerms(List<Term> terms) {
     List<String> tokensList = new ArrayList<>();
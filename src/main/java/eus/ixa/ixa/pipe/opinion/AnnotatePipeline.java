@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import eus.ixa.ixa.pipe.ml.utils.Flags;
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Runs several annotators over the same parsed document, so that a full
+ * analysis parses and serializes the NAF document only once. The tokens and
+ * terms of every sentence are extracted once by the {@link TermIndex} shared
+ * by the stages.
+ *
+ * The stages are ote (opinion targets), aspect (aspects with the sequence
+ * labeler or the document classifier), pol (sentence polarity, optionally
+ * with the polarity lexicon) and absa (targets with their polarity). The
+ * servers create a pipeline with every stage whose models are available and
+ * run the stages chosen by each request.
+ *
+ * @author ragerri
+ * @version 2018-05-12
+ *
+ */
+public class AnnotatePipeline implements Annotate {
+
+  /**
+   * The stages available.
+   */
+  public static final String[] STAGES = { "ote", "aspect", "aspect-seq", "aspect-doc", "pol", "absa" };
+
+  /**
+   * The annotators, in the order they are run.
+   */
+  private final List<Annotate> stages;
+  /**
+   * The names of the stages.
+   */
+  private final List<String> stageNames;
+
+  /**
+   * Construct a pipeline with already created annotators.
+   * @param stageNames the names of the stages
+   * @param stages the annotators
+   */
+  public AnnotatePipeline(final List<String> stageNames, final List<Annotate> stages) {
+    this.stageNames = Collections.unmodifiableList(new ArrayList<>(stageNames));
+    this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+  }
+
+  /**
+   * Construct a pipeline, creating the annotator of every stage.
+   * @param stageNames the names of the stages, in order
+   * @param properties the language, clearFeatures, targetModel, aspectModel,
+   *          aspectTagger, seqAspectModel, docAspectModel, polarityModel and
+   *          dictionary properties, only those needed by the stages are
+   *          required; clearFeatures and dictionary default to no and off
+   * @throws IOException if a model cannot be loaded
+   */
+  public AnnotatePipeline(final List<String> stageNames, final Properties properties)
+      throws IOException {
+    this(stageNames, createStages(stageNames, properties));
+  }
+
+  private static List<Annotate> createStages(List<String> stageNames,
+      Properties properties) throws IOException {
+    List<Annotate> stages = new ArrayList<>();
+    for (String stage : stageNames) {
+      stages.add(createStage(stage, properties));
+    }
+    return stages;
+  }
+
+  /**
+   * Create the annotator of a stage.
+   * @param stage the name of the stage
+   * @param properties the properties of the pipeline
+   * @return the annotator
+   * @throws IOException if a model cannot be loaded
+   */
+  static Annotate createStage(String stage, Properties properties) throws IOException {
+    switch (stage) {
+    case "ote":
+      return new AnnotateTargets(stageProperties(properties, "targetModel"));
+    case "aspect":
+      Properties aspectProperties = stageProperties(properties, "aspectModel");
+      if (properties.getProperty("aspectTagger", "seq").equalsIgnoreCase("doc")) {
+        return new DocAnnotateAspects(aspectProperties);
+      } else {
+        return new SeqAnnotateAspects(aspectProperties);
+      }
+    case "aspect-seq":
+      return new SeqAnnotateAspects(stageProperties(properties, "seqAspectModel"));
+    case "aspect-doc":
+      return new DocAnnotateAspects(stageProperties(properties, "docAspectModel"));
+    case "pol":
+      Properties polProperties = stageProperties(properties, "polarityModel");
+      polProperties.setProperty("dictionary",
+          properties.getProperty("dictionary", Flags.DEFAULT_DICT_OPTION));
+      return new AnnotatePolarity(polProperties);
+    case "absa":
+      return new AnnotateAbsa(stageProperties(properties, "targetModel"),
+          stageProperties(properties, "polarityModel"));
+    default:
+      throw new IllegalArgumentException("Unknown pipeline stage " + stage);
+    }
+  }
+
+  /**
+   * Get the stages whose models are given in the properties.
+   * @param properties the properties of the pipeline
+   * @return the names of the stages, in the order of {@link #STAGES}
+   */
+  public static List<String> getAvailableStages(final Properties properties) {
+    List<String> stages = new ArrayList<>();
+    boolean hasTarget = properties.getProperty("targetModel") != null;
+    boolean hasPolarity = properties.getProperty("polarityModel") != null;
+    if (hasTarget) {
+      stages.add("ote");
+    }
+    if (properties.getProperty("aspectModel") != null) {
+      stages.add("aspect");
+    }
+    if (properties.getProperty("seqAspectModel") != null) {
+      stages.add("aspect-seq");
+    }
+    if (properties.getProperty("docAspectModel") != null) {
+      stages.add("aspect-doc");
+    }
+    if (hasPolarity) {
+      stages.add("pol");
+    }
+    if (hasTarget && hasPolarity) {
+      stages.add("absa");
+    }
+    return stages;
+  }
+
+  /**
+   * Get the properties of the annotator of a stage.
+   * @param properties the properties of the pipeline
+   * @param modelProperty the name of the property with the model of the stage
+   * @return the properties of the annotator
+   */
+  static Properties stageProperties(Properties properties, String modelProperty) {
+    String model = properties.getProperty(modelProperty);
+    if (model == null) {
+      throw new IllegalArgumentException("The pipeline requires the " + modelProperty);
+    }
+    Properties stageProperties = new Properties();
+    stageProperties.setProperty("model", model);
+    stageProperties.setProperty("language", properties.getProperty("language"));
+    stageProperties.setProperty("clearFeatures",
+        properties.getProperty("clearFeatures", Flags.DEFAULT_FEATURE_FLAG));
+    return stageProperties;
+  }
+
+  /**
+   * Run every stage over the document.
+   * @param kaf the KAFDocument
+   */
+  public final void annotate(final KAFDocument kaf) {
+    for (Annotate stage : stages) {
+      stage.annotate(kaf);
+    }
+  }
+
+  /**
+   * Run some of the stages over the document.
+   * @param kaf the KAFDocument
+   * @param stageNames the names of the stages, in the order they are run
+   * @throws IllegalArgumentException if a stage is not in the pipeline
+   */
+  public final void annotate(final KAFDocument kaf, final List<String> stageNames) {
+    checkStages(stageNames);
+    for (String stage : stageNames) {
+      stages.get(this.stageNames.indexOf(stage)).annotate(kaf);
+    }
+  }
+
+  /**
+   * Check that every stage is in the pipeline.
+   * @param stageNames the names of the stages
+   * @throws IllegalArgumentException if a stage is not in the pipeline
+   */
+  public final void checkStages(final List<String> stageNames) {
+    checkStages(this.stageNames, stageNames);
+  }
+
+  /**
+   * Check that every stage is among the available ones.
+   * @param available the names of the available stages
+   * @param stageNames the names of the stages
+   * @throws IllegalArgumentException if a stage is not available
+   */
+  static void checkStages(final List<String> available, final List<String> stageNames) {
+    for (String stage : stageNames) {
+      if (!available.contains(stage)) {
+        throw new IllegalArgumentException("The stage " + stage + " is not available, choose among "
+            + String.join(",", available));
+      }
+    }
+  }
+
+  /**
+   * Parse a comma separated list of stages.
+   * @param stages the list, such as ote,pol
+   * @return the names of the stages, in order
+   * @throws IllegalArgumentException if the list is empty
+   */
+  public static List<String> parseStages(final String stages) {
+    List<String> stageNames = new ArrayList<>();
+    for (String stage : stages.split(",")) {
+      if (!stage.trim().isEmpty()) {
+        stageNames.add(stage.trim());
+      }
+    }
+    if (stageNames.isEmpty()) {
+      throw new IllegalArgumentException("No stages given, choose among " + String.join(",", STAGES));
+    }
+    return stageNames;
+  }
+
+  /**
+   * Get the names of the stages.
+   * @return the names, in order
+   */
+  public final List<String> getStageNames() {
+    return stageNames;
+  }
+
+  /**
+   * Output annotation as NAF.
+   *
+   * @param kaf
+   *          the naf document
+   * @return the string containing the naf document
+   */
+  public final String annotateToNAF(KAFDocument kaf) {
+    return kaf.toString();
+  }
+
+}
@@ -16,23 +16,18 @@
 
 package eus.ixa.ixa.pipe.opinion;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
 import com.google.common.io.Files;
 
-import eus.ixa.ixa.pipe.ml.StatisticalDocumentClassifier;
-import eus.ixa.ixa.pipe.ml.polarity.DictionaryPolarityTagger;
 import eus.ixa.ixa.pipe.ml.utils.Flags;
 import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Opinion;
 import ixa.kaflib.Opinion.OpinionExpression;
 import ixa.kaflib.Term;
 import ixa.kaflib.Term.Sentiment;
-import ixa.kaflib.WF;
 
 /**
  * Annotation class for polarity tagging using document classification.
@@ -46,8 +41,11 @@ public class AnnotatePolarity implements Annotate {
   /**
    * The Document classifier to annotate polarity.
    */
-  private StatisticalDocumentClassifier polTagger;
-  private DictionaryPolarityTagger dictTagger;
+  private ModelRegistry.Classifier polTagger;
+  /**
+   * The polarity lexicon, text or compiled, shared by every annotator.
+   */
+  private PolarityLexicon dictTagger;
   private Boolean isDict = false;
   private String dictionary = null;
   /**
@@ -61,10 +59,10 @@ public class AnnotatePolarity implements Annotate {
     this.clearFeatures = properties.getProperty("clearFeatures");
     dictionary = properties.getProperty("dictionary");
     if (!dictionary.equalsIgnoreCase(Flags.DEFAULT_DICT_OPTION)) {
-      dictTagger = new DictionaryPolarityTagger(new FileInputStream(dictionary));
+      dictTagger = PolarityLexicon.getLexicon(dictionary);
       isDict = true;
     }
-    polTagger = new StatisticalDocumentClassifier(properties);
+    polTagger = ModelRegistry.newClassifier(properties);
   }
   
   /**
@@ -73,36 +71,23 @@ public class AnnotatePolarity implements Annotate {
    */
   public final void annotate(final KAFDocument kaf) {
 
-    List<List<WF>> sentences = kaf.getSentences();
-    List<Term> terms = kaf.getTerms();
-    for (List<WF> sentence : sentences) {
+    if (isDict) {
+      tagTerms(kaf.getTerms());
+    }
+    TermIndex termIndex = TermIndex.of(kaf);
+    for (int sent = 0; sent < termIndex.getNumSentences(); sent++) {
+      Deadline.check(sent, termIndex.getNumSentences());
       //process each sentence
-      String[] tokens = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-      }
-      if (isDict) {
-        for (Term term : terms) {
-          String polarity = dictTagger.tag(term.getForm());
-          if (polarity.equalsIgnoreCase("O")) {
-            polarity = dictTagger.tag(term.getLemma());
-          }
-          if (!polarity.equalsIgnoreCase("O")) {
-            Sentiment sentiment = term.createSentiment();
-            sentiment.setPolarity(polarity);
-            sentiment.setResource(Files.getNameWithoutExtension(dictionary));
-          }
-        }
-      }
+      String[] tokens = termIndex.getTokens(sent);
       if (clearFeatures.equalsIgnoreCase("docstart") && tokens[0].startsWith("-DOCSTART-")) {
         polTagger.clearFeatureData();
       }
+      if (termIndex.isUpToDate(sent)) {
+        continue;
+      }
       //Document Classification
       String polarity = polTagger.classify(tokens);
-      List<Term> polarityTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, 0, tokens.length)));
+      List<Term> polarityTerms = termIndex.getTerms(sent);
       ixa.kaflib.Span<Term> polaritySpan = KAFDocument.newTermSpan(polarityTerms);
       Opinion opinion = kaf.newOpinion();
       //TODO expression span, perhaps heuristic around ote and/or around opinion expression?
@@ -115,6 +100,25 @@ public class AnnotatePolarity implements Annotate {
     polTagger.clearFeatureData();
   }
 
+  /**
+   * Tag the polarity of every term with the lexicon, looking up its form
+   * and, if not found, its lemma.
+   * @param terms the terms of the document
+   */
+  private void tagTerms(final List<Term> terms) {
+    long start = System.nanoTime();
+    String resource = Files.getNameWithoutExtension(dictionary);
+    for (Term term : terms) {
+      String polarity = dictTagger.tag(term.getForm(), term.getLemma());
+      if (!polarity.equalsIgnoreCase(PolarityLexicon.NO_POLARITY)) {
+        Sentiment sentiment = term.createSentiment();
+        sentiment.setPolarity(polarity);
+        sentiment.setResource(resource);
+      }
+    }
+    Metrics.time(Metrics.Stage.DICTIONARY, start);
+  }
+
   /**
    * Output annotation as NAF.
    * 
@@ -125,9 +129,17 @@ public class AnnotatePolarity implements Annotate {
   public final String annotateToNAF(KAFDocument kaf) {
     return kaf.toString();
   }
+
   
+  /**
+   * Output the opinions tabulated, without the rest of the NAF document.
+   * 
+   * @param kaf
+   *          the naf document
+   * @return the string containing one opinion per line
+   */
   public final String annotatePolarityToTabulated(KAFDocument kaf) {
-    return kaf.toString();
+    return new OpinionWriter(OpinionWriter.TABULATED).toString(kaf);
   }
 
 }
@@ -17,18 +17,15 @@
 package eus.ixa.ixa.pipe.opinion;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
-import eus.ixa.ixa.pipe.ml.StatisticalSequenceLabeler;
 import eus.ixa.ixa.pipe.ml.sequence.SequenceLabel;
 import eus.ixa.ixa.pipe.ml.sequence.SequenceLabelFactory;
 import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Opinion;
 import ixa.kaflib.Opinion.OpinionExpression;
 import ixa.kaflib.Term;
-import ixa.kaflib.WF;
 
 /**
  * Annotation class for Opinion Target Extraction (OTE).
@@ -46,7 +43,7 @@ public class AnnotateTargets implements Annotate {
   /**
    * The NameFinder to do the opinion target extraction.
    */
-  private StatisticalSequenceLabeler oteExtractor;
+  private ModelRegistry.Labeler oteExtractor;
   /**
    * Clear features after every sentence or when a -DOCSTART- mark appears.
    */
@@ -57,7 +54,7 @@ public class AnnotateTargets implements Annotate {
 
     this.clearFeatures = properties.getProperty("clearFeatures");
     nameFactory = new SequenceLabelFactory();
-    oteExtractor = new StatisticalSequenceLabeler(properties);
+    oteExtractor = ModelRegistry.newLabeler(properties);
   }
   
   /**
@@ -66,24 +63,22 @@ public class AnnotateTargets implements Annotate {
    */
   public final void annotate(final KAFDocument kaf) {
 
-    List<List<WF>> sentences = kaf.getSentences();
-    for (List<WF> sentence : sentences) {
+    TermIndex termIndex = TermIndex.of(kaf);
+    for (int sent = 0; sent < termIndex.getNumSentences(); sent++) {
+      Deadline.check(sent, termIndex.getNumSentences());
       //process each sentence
-      String[] tokens = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-      }
+      String[] tokens = termIndex.getTokens(sent);
       if (clearFeatures.equalsIgnoreCase("docstart") && tokens[0].startsWith("-DOCSTART-")) {
         oteExtractor.clearAdaptiveData();
       }
+      if (termIndex.isUpToDate(sent)) {
+        continue;
+      }
       List<SequenceLabel> names = oteExtractor.getSequences(tokens);
       for (SequenceLabel name : names) {
         Integer startIndex = name.getSpan().getStart();
         Integer endIndex = name.getSpan().getEnd();
-        List<Term> nameTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, startIndex, endIndex)));
+        List<Term> nameTerms = termIndex.getTerms(sent, startIndex, endIndex);
         ixa.kaflib.Span<Term> oteSpan = KAFDocument.newTermSpan(nameTerms);
         Opinion opinion = kaf.newOpinion();
         opinion.createOpinionTarget(oteSpan);
@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The annotators of the worker threads of a server. Every worker has a
+ * pipeline with all the stages whose models are given, so that each request
+ * can choose its stages; the models themselves are loaded once by the
+ * {@link ModelRegistry} and shared by every pipeline. The sequence labeler
+ * and the document classifier keep adaptive feature data, so a pipeline is
+ * never used by two requests at the same time. When the registry loads a
+ * new version of a model, the pipelines are replaced as they are given
+ * back, so that running requests finish with the old model, and a pipeline
+ * still idle with the old model is replaced before it is handed out, so
+ * that every request started after the swap uses the new one.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
+public class AnnotatorPool {
+
+  /**
+   * Creates the pipelines.
+   */
+  private interface PipelineFactory {
+    AnnotatePipeline create() throws IOException;
+  }
+
+  /**
+   * Creates the pipelines.
+   */
+  private final PipelineFactory factory;
+  /**
+   * The stages of the pipelines.
+   */
+  private final List<String> stageNames;
+  /**
+   * The pipelines available.
+   */
+  private final BlockingQueue<Pooled> annotators;
+
+  /**
+   * A pipeline of the pool and the generation of the models it uses. The
+   * pipeline is null in the place of an invalidated one which could not be
+   * replaced yet.
+   */
+  public static final class Pooled {
+    private final AnnotatePipeline annotator;
+    private final long generation;
+    private volatile boolean invalid;
+
+    private Pooled(AnnotatePipeline annotator, long generation) {
+      this.annotator = annotator;
+      this.generation = generation;
+    }
+
+    /**
+     * Get the pipeline.
+     * @return the pipeline
+     */
+    public AnnotatePipeline getAnnotator() {
+      return annotator;
+    }
+
+    /**
+     * Replace the pipeline when it is given back, because a document was
+     * left unfinished and its adaptive data is still in the annotators.
+     */
+    public void invalidate() {
+      invalid = true;
+    }
+  }
+
+  /**
+   * Construct a pool, creating all its pipelines.
+   * @param size the number of pipelines
+   * @param serverProperties the threads, batchSize and batchDelay properties
+   * @param properties the language, clearFeatures, targetModel, aspectModel,
+   *          aspectTagger, seqAspectModel, docAspectModel, polarityModel and
+   *          dictionary properties of the pipelines, as in {@link AnnotatePipeline}
+   * @throws IOException if the models cannot be loaded
+   */
+  public AnnotatorPool(int size, Properties serverProperties, Properties properties)
+      throws IOException {
+    this.stageNames = AnnotatePipeline.getAvailableStages(properties);
+    this.factory = newFactory(stageNames, serverProperties, properties);
+    annotators = new ArrayBlockingQueue<>(size);
+    for (int i = 0; i < size; i++) {
+      annotators.add(newAnnotator());
+    }
+  }
+
+  /**
+   * Create the factory of the pipelines. If the batchSize server property is
+   * positive, the absa stage of every pipeline is one {@link SentenceBatcher}
+   * shared by every worker.
+   */
+  private static PipelineFactory newFactory(List<String> stages,
+      Properties serverProperties, Properties properties) throws IOException {
+    if (stages.isEmpty()) {
+      throw new IllegalArgumentException("The server requires the model of at least one stage");
+    }
+    int batchSize = Integer.parseInt(serverProperties.getProperty("batchSize", "0"));
+    if (batchSize <= 0) {
+      return () -> new AnnotatePipeline(stages, properties);
+    }
+    if (!stages.contains("absa")) {
+      throw new IllegalArgumentException("Batching sentences requires the absa stage");
+    }
+    long batchDelay = Long.parseLong(serverProperties.getProperty("batchDelay", "2"));
+    int threads = Integer.parseInt(serverProperties.getProperty("threads"));
+    SentenceBatcher batcher = new SentenceBatcher(
+        AnnotatePipeline.stageProperties(properties, "targetModel"),
+        AnnotatePipeline.stageProperties(properties, "polarityModel"),
+        batchSize, batchDelay, threads);
+    System.out.println("-> Batching up to " + batchSize + " sentences of the absa stage waiting at most "
+        + batchDelay + " ms");
+    return () -> {
+      List<Annotate> stageAnnotators = new ArrayList<>();
+      for (String stage : stages) {
+        stageAnnotators.add(stage.equals("absa") ? batcher : AnnotatePipeline.createStage(stage, properties));
+      }
+      return new AnnotatePipeline(stages, stageAnnotators);
+    };
+  }
+
+  /**
+   * Create a pipeline with the current version of the models.
+   * @return the pipeline
+   * @throws IOException if the models cannot be loaded
+   */
+  private Pooled newAnnotator() throws IOException {
+    long generation = ModelRegistry.getGeneration();
+    return new Pooled(factory.create(), generation);
+  }
+
+  /**
+   * Check that the stages chosen by a request are in the pipelines.
+   * @param stageNames the names of the stages
+   * @throws IllegalArgumentException if a stage is not available
+   */
+  public void checkStages(List<String> stageNames) {
+    AnnotatePipeline.checkStages(this.stageNames, stageNames);
+  }
+
+  /**
+   * Take a pipeline, waiting until one is free. A pipeline with an old
+   * version of the models is replaced first.
+   * @return the pipeline
+   * @throws InterruptedException if interrupted while waiting
+   * @throws IllegalStateException if there is no valid pipeline and a new
+   *           one cannot be created
+   */
+  public Pooled take() throws InterruptedException {
+    Pooled pooled = annotators.take();
+    if (pooled.annotator == null || pooled.generation != ModelRegistry.getGeneration()) {
+      try {
+        pooled = newAnnotator();
+      } catch (IOException | RuntimeException e) {
+        if (pooled.annotator == null) {
+          annotators.add(pooled);
+          throw new IllegalStateException("No annotator available: " + e.getMessage(), e);
+        }
+        // serve the request with the old models rather than failing it
+        e.printStackTrace();
+      }
+    }
+    return pooled;
+  }
+
+  /**
+   * Give a pipeline back to the pool once its request is finished. If a
+   * model has changed meanwhile or the pipeline was invalidated, a new
+   * pipeline is created instead. An invalidated pipeline is never given back:
+   * if the new one cannot be created, an empty place is left which the next
+   * {@link #take()} fills.
+   * @param pooled the pipeline
+   */
+  public void release(Pooled pooled) {
+    if (pooled.invalid || pooled.generation != ModelRegistry.getGeneration()) {
+      try {
+        pooled = newAnnotator();
+      } catch (IOException | RuntimeException e) {
+        e.printStackTrace();
+        if (pooled.invalid) {
+          pooled = new Pooled(null, pooled.generation);
+        }
+      }
+    }
+    annotators.add(pooled);
+  }
+
+}
@@ -0,0 +1,568 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom2.JDOMException;
+
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Annotates many NAF documents with one set of loaded models. The documents
+ * are read from a stream of concatenated NAF documents, from a list of files
+ * or from a directory. Every annotated document is written either to the
+ * output stream followed by an {@code <ENDOFDOCUMENT>} line or to a file with
+ * the same name in an output directory. With the tabulated and jsonl output
+ * formats only the opinions of each document are written, preceded by its
+ * name.
+ *
+ * Documents can be annotated in parallel by several threads, each one with
+ * its own annotator because of the adaptive features of the models; the
+ * models themselves are loaded once and shared through the
+ * {@link ModelRegistry}. Output to a stream keeps the order of the input
+ * documents.
+ *
+ * @author ragerri
+ * @version 2018-05-04
+ *
+ */
+public class BatchAnnotator {
+
+  /**
+   * The line separating documents in a stream of NAF documents.
+   */
+  public static final String END_OF_DOCUMENT = "<ENDOFDOCUMENT>";
+
+  /**
+   * Creates the annotator once the language of the documents is known.
+   */
+  public interface AnnotatorFactory {
+    /**
+     * Create an annotator, loading its models.
+     * @param language the language of the documents
+     * @return the annotator
+     * @throws IOException if the models cannot be loaded
+     */
+    Annotate create(String language) throws IOException;
+  }
+
+  /**
+   * The factory of the annotator.
+   */
+  private final AnnotatorFactory factory;
+  /**
+   * The language required by the user, null to take it from the documents.
+   */
+  private String language;
+  /**
+   * The name of the linguistic processor added to every document.
+   */
+  private final String processorName;
+  /**
+   * The version of the linguistic processor added to every document.
+   */
+  private final String processorVersion;
+  /**
+   * The output format: naf, tabulated or jsonl.
+   */
+  private String outputFormat = "naf";
+  /**
+   * Whether to annotate only the sentences without up to date opinions.
+   */
+  private boolean incremental = false;
+  /**
+   * Whether to parse only the layers used and copy the others unchanged.
+   */
+  private boolean passThrough = false;
+  /**
+   * The number of threads annotating documents.
+   */
+  private final int threads;
+  /**
+   * The annotator of each thread, created with its first document.
+   */
+  private final ThreadLocal<Annotate> annotators = new ThreadLocal<>();
+  /**
+   * The pool of threads, null if the documents are annotated sequentially.
+   */
+  private ExecutorService executor;
+  /**
+   * The documents being annotated, in input order, whose result has not
+   * been written yet.
+   */
+  private final Deque<Future<String>> pending = new ArrayDeque<>();
+  /**
+   * Number of documents annotated.
+   */
+  private final AtomicInteger annotated = new AtomicInteger();
+  /**
+   * Number of documents that could not be annotated.
+   */
+  private final AtomicInteger failed = new AtomicInteger();
+
+  /**
+   * Construct a batch annotator which annotates the documents sequentially.
+   * @param factory the factory of the annotator
+   * @param language the language, null to take it from the first document
+   * @param processorName the name of the linguistic processor
+   * @param processorVersion the version of the linguistic processor
+   */
+  public BatchAnnotator(AnnotatorFactory factory, String language,
+      String processorName, String processorVersion) {
+    this(factory, language, processorName, processorVersion, 1);
+  }
+
+  /**
+   * Construct a batch annotator.
+   * @param factory the factory of the annotator
+   * @param language the language, null to take it from the first document
+   * @param processorName the name of the linguistic processor
+   * @param processorVersion the version of the linguistic processor
+   * @param threads the number of threads annotating documents
+   */
+  public BatchAnnotator(AnnotatorFactory factory, String language,
+      String processorName, String processorVersion, int threads) {
+    this.factory = factory;
+    this.language = language;
+    this.processorName = processorName;
+    this.processorVersion = processorVersion;
+    this.threads = threads;
+  }
+
+  /**
+   * Set the output format.
+   * @param outputFormat naf (default), tabulated or jsonl
+   */
+  public final void setOutputFormat(final String outputFormat) {
+    this.outputFormat = outputFormat;
+  }
+
+  /**
+   * Set the incremental mode, see {@link Incremental}.
+   * @param incremental whether to skip the sentences with up to date opinions
+   */
+  public final void setIncremental(final boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * Set the pass-through mode, see {@link NAFSerializer#read(Reader, boolean)}.
+   * @param passThrough whether to parse only the layers used by the annotators
+   */
+  public final void setPassThrough(final boolean passThrough) {
+    this.passThrough = passThrough;
+  }
+
+  /**
+   * Annotate a stream of NAF documents. Each document ends with a
+   * {@code </NAF>} line or with an {@code <ENDOFDOCUMENT>} line.
+   * @param breader the stream of documents
+   * @param bwriter the output of the annotated documents
+   * @throws IOException if io problems
+   */
+  public final void annotateStream(final BufferedReader breader,
+      final Writer bwriter) throws IOException {
+    startThreads();
+    try {
+      int numDocument = 0;
+      String document;
+      while ((document = readDocument(breader)) != null) {
+        submit(document, "document " + numDocument++, bwriter);
+      }
+      drain(0, bwriter);
+    } finally {
+      stopThreads();
+    }
+    bwriter.flush();
+  }
+
+  /**
+   * Annotate a list of NAF files.
+   * @param files the files to annotate
+   * @param inputDir the directory the files belong to, used to mirror
+   *          their relative paths in the output directory; it can be null
+   * @param outputDir the output directory, null to write to the writer
+   * @param bwriter the output of the annotated documents if there is no
+   *          output directory
+   * @throws IOException if io problems
+   */
+  public final void annotateFiles(final List<File> files, final File inputDir,
+      final File outputDir, final Writer bwriter) throws IOException {
+    List<File> outputFiles = outputDir == null ? null
+        : getOutputFiles(files, inputDir, outputDir);
+    startThreads();
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        File file = files.get(i);
+        if (outputDir == null) {
+          submit(() -> annotateFile(file), bwriter);
+        } else {
+          File outputFile = outputFiles.get(i);
+          submit(() -> annotateFile(file, outputFile), bwriter);
+        }
+      }
+      drain(0, bwriter);
+    } finally {
+      stopThreads();
+    }
+    bwriter.flush();
+  }
+
+  private String annotateFile(File file) throws IOException {
+    try (Reader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      return annotate(reader, file.getPath());
+    }
+  }
+
+  private String annotateFile(File file, File outputFile) throws IOException {
+    KAFDocument kaf;
+    try (Reader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      kaf = annotateDocument(reader, file.getPath());
+    }
+    if (kaf != null) {
+      outputFile.getParentFile().mkdirs();
+      try (Writer fileWriter = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(outputFile), StandardCharsets.UTF_8))) {
+        write(kaf, file.getPath(), fileWriter);
+      }
+    }
+    // written to its own file, nothing left for the output stream
+    return null;
+  }
+
+  /**
+   * Read the next document of a stream of concatenated NAF documents, each
+   * one ending with a {@code </NAF>} or {@code <ENDOFDOCUMENT>} line. Blank
+   * lines before a document, which would come before its XML declaration,
+   * and blank documents are skipped.
+   * @param breader the stream
+   * @return the document, or null at the end of the stream
+   * @throws IOException if io problems
+   */
+  public static String readDocument(final BufferedReader breader) throws IOException {
+    StringBuilder document = new StringBuilder();
+    boolean blank = true;
+    String line;
+    while ((line = breader.readLine()) != null) {
+      boolean isDelimiter = line.equals(END_OF_DOCUMENT);
+      if (!isDelimiter && !(blank && line.trim().isEmpty())) {
+        document.append(line).append("\n");
+        blank = false;
+      }
+      if ((isDelimiter || line.equals("</NAF>")) && !blank) {
+        return document.toString();
+      }
+    }
+    return blank ? null : document.toString();
+  }
+
+  /**
+   * Get the NAF files listed in a file, one path per line.
+   * @param fileList the file containing the list
+   * @return the files
+   * @throws IOException if io problems
+   */
+  public static List<File> readFileList(final File fileList) throws IOException {
+    List<File> files = new ArrayList<>();
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(fileList), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) {
+          files.add(new File(line));
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Get every file in a directory and its subdirectories, sorted by path.
+   * @param inputDir the directory
+   * @return the files
+   * @throws IOException if the directory cannot be read
+   */
+  public static List<File> listFiles(final File inputDir) throws IOException {
+    List<File> files = new ArrayList<>();
+    File[] entries = inputDir.listFiles();
+    if (entries == null) {
+      throw new IOException("Cannot read directory " + inputDir);
+    }
+    for (File entry : entries) {
+      if (entry.isDirectory()) {
+        files.addAll(listFiles(entry));
+      } else if (!entry.isHidden()) {
+        files.add(entry);
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Get the output file of every input file, failing before anything is
+   * annotated if two of them would be written to the same output file, as
+   * same-named files of different directories in a file list would.
+   * @param files the input files
+   * @param inputDir the directory the files belong to, it can be null
+   * @param outputDir the output directory
+   * @return the output files, in the order of the input files
+   * @throws IOException if two files have the same output file
+   */
+  static List<File> getOutputFiles(List<File> files, File inputDir, File outputDir)
+      throws IOException {
+    List<File> outputFiles = new ArrayList<>();
+    Map<Path, File> inputFiles = new HashMap<>();
+    for (File file : files) {
+      File outputFile = getOutputFile(file, inputDir, outputDir);
+      File previous = inputFiles.putIfAbsent(
+          outputFile.toPath().toAbsolutePath().normalize(), file);
+      if (previous != null) {
+        throw new IOException("Both " + previous + " and " + file
+            + " would be written to " + outputFile);
+      }
+      outputFiles.add(outputFile);
+    }
+    return outputFiles;
+  }
+
+  private static File getOutputFile(File file, File inputDir, File outputDir) {
+    if (inputDir != null) {
+      String relative = inputDir.toURI().relativize(file.toURI()).getPath();
+      return new File(outputDir, relative);
+    }
+    return new File(outputDir, file.getName());
+  }
+
+  private void startThreads() {
+    if (threads > 1) {
+      executor = Executors.newFixedThreadPool(threads);
+    }
+  }
+
+  private void stopThreads() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    pending.clear();
+  }
+
+  private void submit(String document, String name, Writer bwriter)
+      throws IOException {
+    submit(() -> annotate(new StringReader(document), name), bwriter);
+  }
+
+  /**
+   * Annotate a document, in this thread if there is no pool of threads or
+   * if the language of the batch is not known yet, so that it is always the
+   * language of the first document and not of whichever thread checks first.
+   * The results are written in the order of submission; at most two
+   * documents per thread are kept waiting so that memory does not grow with
+   * the corpus.
+   * @param task the annotation of the document
+   * @param bwriter the output
+   * @throws IOException if io problems
+   */
+  private void submit(Callable<String> task, Writer bwriter)
+      throws IOException {
+    if (executor == null || getLanguage() == null) {
+      String kafToString;
+      try {
+        kafToString = task.call();
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      write(kafToString, bwriter);
+    } else {
+      pending.add(executor.submit(task));
+      drain(2 * threads, bwriter);
+    }
+  }
+
+  /**
+   * Write the results of the first pending documents until no more than
+   * {@code maxPending} remain.
+   */
+  private void drain(int maxPending, Writer bwriter) throws IOException {
+    while (pending.size() > maxPending) {
+      String kafToString;
+      try {
+        kafToString = pending.peek().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while annotating documents", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+      pending.remove();
+      write(kafToString, bwriter);
+    }
+  }
+
+  private void write(String kafToString, Writer bwriter) throws IOException {
+    if (kafToString != null) {
+      bwriter.write(kafToString);
+      if (!OpinionWriter.isOpinionFormat(outputFormat)) {
+        bwriter.write(END_OF_DOCUMENT);
+        bwriter.write("\n");
+      }
+    }
+  }
+
+  /**
+   * Annotate one document and serialize it in the output format.
+   * @param reader the NAF document
+   * @param name the name of the document
+   * @return the annotated document, or its opinions, or null if it was skipped
+   * @throws IOException if io problems
+   */
+  private String annotate(Reader reader, String name) throws IOException {
+    KAFDocument kaf = annotateDocument(reader, name);
+    if (kaf == null) {
+      return null;
+    }
+    StringWriter output = new StringWriter();
+    write(kaf, name, output);
+    return output.toString();
+  }
+
+  /**
+   * Write an annotated document in the output format.
+   * @param kaf the annotated document
+   * @param name the name of the document
+   * @param writer the output
+   * @throws IOException if io problems
+   */
+  private void write(KAFDocument kaf, String name, Writer writer) throws IOException {
+    if (OpinionWriter.isOpinionFormat(outputFormat)) {
+      new OpinionWriter(outputFormat).write(kaf, name, writer);
+    } else {
+      annotators.get().annotateToNAF(kaf, writer);
+    }
+  }
+
+  /**
+   * Annotate one document. Documents which cannot be parsed or whose
+   * language does not match are reported and skipped.
+   * @param reader the NAF document
+   * @param name the name of the document for the error messages
+   * @return the annotated document or null if it was skipped
+   * @throws IOException if io problems
+   */
+  private KAFDocument annotateDocument(Reader reader, String name) throws IOException {
+    KAFDocument kaf;
+    try {
+      kaf = NAFSerializer.read(reader, passThrough);
+    } catch (JDOMException e) {
+      System.err.println("Badly formatted NAF document, skipping " + name);
+      failed.incrementAndGet();
+      return null;
+    }
+    if (!checkLanguage(kaf.getLang())) {
+      System.err.println("Language parameter in NAF and CLI do not match, skipping " + name);
+      failed.incrementAndGet();
+      return null;
+    }
+    Annotate annotator = annotators.get();
+    if (annotator == null) {
+      annotator = factory.create(language);
+      annotators.set(annotator);
+    }
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(
+        kaf, processorName, processorVersion, incremental);
+    newLp.setBeginTimestamp();
+    annotator.annotate(kaf);
+    newLp.setEndTimestamp();
+    Metrics.document(kaf);
+    annotated.incrementAndGet();
+    return kaf;
+  }
+
+  /**
+   * Get the language of the batch.
+   * @return the language, null until it is taken from the first document
+   */
+  private synchronized String getLanguage() {
+    return language;
+  }
+
+  /**
+   * Check the language of a document, which is taken as the language of the
+   * batch if none was given.
+   * @param documentLanguage the language of the document
+   * @return whether the document is in the language of the batch
+   */
+  private synchronized boolean checkLanguage(String documentLanguage) {
+    if (language == null) {
+      language = documentLanguage;
+    }
+    return documentLanguage.equalsIgnoreCase(language);
+  }
+
+  /**
+   * Get the number of documents annotated.
+   * @return the number of documents
+   */
+  public final int getAnnotated() {
+    return annotated.get();
+  }
+
+  /**
+   * Get the number of documents skipped because of errors.
+   * @return the number of documents
+   */
+  public final int getFailed() {
+    return failed.get();
+  }
+
+}
@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client sending many NAF documents to a server with the framed protocol.
+ * It keeps several connections open and pipelines documents over each of
+ * them, without waiting for the previous responses. The documents are read
+ * as they are sent and every response is written as soon as possible, to its
+ * own file or, keeping the input order, to the output stream, so that only
+ * the documents in flight are held in memory. At the end it reports the
+ * throughput and the latency percentiles.
+ *
+ * @author ragerri
+ * @version 2018-05-21
+ *
+ */
+public class BulkClient {
+
+  /**
+   * Marks the end of the documents to the connections.
+   */
+  private static final Document END = new Document(-1, null, null, null);
+
+  private final String host;
+  private final int port;
+  private final int connections;
+  /**
+   * The maximum number of documents in flight on a connection.
+   */
+  private final int depth;
+  /**
+   * The line choosing the stages sent before every document, maybe empty.
+   */
+  private final byte[] stagesHeader;
+  /**
+   * The documents read and not yet sent; those given back by a closed
+   * connection go first, ahead of the end marks.
+   */
+  private final BlockingDeque<Document> pending = new LinkedBlockingDeque<>();
+  /**
+   * Permits for the documents read and not yet written, so that reading does
+   * not go too far ahead of the responses.
+   */
+  private final Semaphore window;
+  /**
+   * The connections still working.
+   */
+  private final AtomicInteger alive = new AtomicInteger();
+  /**
+   * Set once no connection is left, after which the documents fail at once.
+   */
+  private volatile boolean disconnected;
+  /**
+   * The output stream, null when every response goes to its own file.
+   */
+  private OutputStream output;
+  /**
+   * The responses which arrived before those of earlier documents, by index.
+   */
+  private final Map<Integer, byte[]> waiting = new HashMap<>();
+  private int nextToWrite;
+  private int annotated;
+  private int failed;
+  /**
+   * The latency of every document in microseconds.
+   */
+  private long[] latencies = new long[1024];
+  private int numLatencies;
+  private long startTime;
+  private long endTime;
+
+  /**
+   * A document to send.
+   */
+  private static final class Document {
+    private final int index;
+    private final String name;
+    private final byte[] bytes;
+    /**
+     * The file of the response, null to write it to the output stream.
+     */
+    private final File outputFile;
+    private long sent;
+
+    private Document(int index, String name, byte[] bytes, File outputFile) {
+      this.index = index;
+      this.name = name;
+      this.bytes = bytes;
+      this.outputFile = outputFile;
+    }
+  }
+
+  /**
+   * Construct a client.
+   * @param host the host of the server
+   * @param port the port of the server
+   * @param connections the number of connections
+   * @param depth the maximum number of documents in flight on a connection
+   * @param stagesHeader the line choosing the stages sent before every
+   *          document, empty for the default stages of the server
+   */
+  public BulkClient(String host, int port, int connections, int depth, String stagesHeader) {
+    this.host = host;
+    this.port = port;
+    this.connections = connections;
+    this.depth = depth;
+    this.stagesHeader = stagesHeader.getBytes(StandardCharsets.UTF_8);
+    this.window = new Semaphore(2 * connections * depth);
+  }
+
+  /**
+   * Annotate a stream of NAF documents, each one ending with a
+   * {@code </NAF>} or {@code <ENDOFDOCUMENT>} line, writing the responses to
+   * the output in the same order.
+   * @param breader the documents
+   * @param outputStream the output
+   * @throws IOException if the server cannot be reached or io problems
+   */
+  public final void annotateStream(final BufferedReader breader,
+      final OutputStream outputStream) throws IOException {
+    output = outputStream;
+    Thread[] threads = start();
+    try {
+      int numDocument = 0;
+      String document;
+      while ((document = BatchAnnotator.readDocument(breader)) != null) {
+        send(numDocument, "document " + numDocument, document, null);
+        numDocument++;
+      }
+    } finally {
+      finish(threads);
+    }
+  }
+
+  /**
+   * Annotate a list of NAF files.
+   * @param files the files
+   * @param inputDir the directory the files belong to, used to mirror their
+   *          relative paths in the output directory; it can be null
+   * @param outputDir the output directory, null to write the responses to
+   *          the output stream in the order of the files
+   * @param outputStream the output if there is no output directory
+   * @throws IOException if the server cannot be reached or io problems
+   */
+  public final void annotateFiles(final List<File> files, final File inputDir,
+      final File outputDir, final OutputStream outputStream) throws IOException {
+    output = outputDir == null ? outputStream : null;
+    List<File> outputFiles = outputDir == null ? null
+        : BatchAnnotator.getOutputFiles(files, inputDir, outputDir);
+    Thread[] threads = start();
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        File file = files.get(i);
+        File outputFile = outputDir == null ? null : outputFiles.get(i);
+        send(i, file.getPath(), new String(Files.readAllBytes(file.toPath()),
+            StandardCharsets.UTF_8), outputFile);
+      }
+    } finally {
+      finish(threads);
+    }
+  }
+
+  /**
+   * Open the connections and start their threads, which are daemons so that
+   * those already started do not keep the JVM alive if a later connection
+   * cannot be opened.
+   */
+  private Thread[] start() throws IOException {
+    startTime = System.nanoTime();
+    Thread[] threads = new Thread[connections];
+    for (int i = 0; i < connections; i++) {
+      Connection connection = new Connection(new Socket(host, port));
+      alive.incrementAndGet();
+      threads[i] = new Thread(connection::send, "bulk-client-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    return threads;
+  }
+
+  /**
+   * Queue a document for the connections, waiting while too many are in
+   * flight.
+   */
+  private void send(int index, String name, String document, File outputFile) throws IOException {
+    try {
+      window.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sending the documents", e);
+    }
+    byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+    if (stagesHeader.length > 0) {
+      byte[] request = Arrays.copyOf(stagesHeader, stagesHeader.length + bytes.length);
+      System.arraycopy(bytes, 0, request, stagesHeader.length, bytes.length);
+      bytes = request;
+    }
+    pending.add(new Document(index, name, bytes, outputFile));
+    if (disconnected) {
+      failPending();
+    }
+  }
+
+  /**
+   * Fail the documents nobody will send because no connection is left.
+   */
+  private void failPending() {
+    Document left;
+    while ((left = pending.poll()) != null) {
+      if (left != END) {
+        received(left, false, "-> ERROR: No connection to the server".getBytes(StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  /**
+   * Wait until every response has arrived.
+   */
+  private void finish(Thread[] threads) throws IOException {
+    for (int i = 0; i < threads.length; i++) {
+      pending.add(END);
+    }
+    try {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    endTime = System.nanoTime();
+    if (output != null) {
+      output.flush();
+    }
+  }
+
+  /**
+   * Write the response of a document, or report its error.
+   * @param document the document
+   * @param ok whether it was annotated
+   * @param payload the annotated document or the error message
+   */
+  private synchronized void received(Document document, boolean ok, byte[] payload) {
+    if (ok) {
+      annotated++;
+      addLatency((System.nanoTime() - document.sent) / 1000);
+    } else {
+      failed++;
+      System.err.println(document.name + ": " + new String(payload, StandardCharsets.UTF_8).trim());
+    }
+    try {
+      if (document.outputFile != null) {
+        if (ok) {
+          document.outputFile.getAbsoluteFile().getParentFile().mkdirs();
+          Files.write(document.outputFile.toPath(), payload);
+        }
+        window.release();
+        return;
+      }
+      // keep the order of the input in the output stream
+      waiting.put(document.index, ok ? payload : new byte[0]);
+      byte[] next;
+      while ((next = waiting.remove(nextToWrite)) != null) {
+        output.write(next);
+        nextToWrite++;
+        window.release();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void addLatency(long micros) {
+    if (numLatencies == latencies.length) {
+      latencies = Arrays.copyOf(latencies, latencies.length * 2);
+    }
+    latencies[numLatencies++] = micros;
+  }
+
+  /**
+   * Get the number of documents annotated.
+   * @return the number of documents
+   */
+  public final synchronized int getAnnotated() {
+    return annotated;
+  }
+
+  /**
+   * Get the number of documents which could not be annotated.
+   * @return the number of documents
+   */
+  public final synchronized int getFailed() {
+    return failed;
+  }
+
+  /**
+   * Get the documents annotated and failed, the throughput and the latency
+   * percentiles, one name and value per line.
+   * @return the report
+   */
+  public final synchronized String getReport() {
+    long[] sorted = Arrays.copyOf(latencies, numLatencies);
+    Arrays.sort(sorted);
+    double seconds = (endTime - startTime) / 1e9;
+    StringBuilder report = new StringBuilder();
+    report.append("documents ").append(annotated).append('\n');
+    report.append("failed ").append(failed).append('\n');
+    report.append(String.format(Locale.ROOT, "seconds %.3f%n", seconds));
+    report.append(String.format(Locale.ROOT, "documentsPerSecond %.3f%n",
+        seconds <= 0 ? 0 : annotated / seconds));
+    for (int percentile : new int[] { 50, 90, 99 }) {
+      report.append(String.format(Locale.ROOT, "latencyP%dMillis %.3f%n", percentile,
+          percentile(sorted, percentile) / 1000.0));
+    }
+    report.append(String.format(Locale.ROOT, "latencyMaxMillis %.3f%n",
+        sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000.0));
+    return report.toString();
+  }
+
+  private static long percentile(long[] sorted, int percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, index)];
+  }
+
+  /**
+   * A connection to the server, sending documents from one thread and
+   * reading the responses from another.
+   */
+  private final class Connection {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    /**
+     * The documents sent and not yet answered, by request id.
+     */
+    private final Map<Integer, Document> inFlight = new ConcurrentHashMap<>();
+    private final Semaphore slots = new Semaphore(depth);
+    private int nextId;
+    /**
+     * Set once the server has closed the connection.
+     */
+    private volatile boolean closed;
+
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /**
+     * Send documents until there are no more or the connection fails.
+     */
+    private void send() {
+      Thread receiver = new Thread(this::receive, Thread.currentThread().getName() + "-receiver");
+      receiver.setDaemon(true);
+      receiver.start();
+      try {
+        Document document;
+        while ((document = pending.take()) != END) {
+          if (closed) {
+            // leave it to the other connections
+            pending.addFirst(document);
+            break;
+          }
+          int id = nextId++;
+          inFlight.put(id, document);
+          if (!slots.tryAcquire()) {
+            // the connection is full, let the server see what was written
+            out.flush();
+            slots.acquire();
+          }
+          document.sent = System.nanoTime();
+          FramedProtocol.writeRequest(out, id, document.bytes);
+          if (pending.isEmpty()) {
+            out.flush();
+          }
+        }
+        out.flush();
+        socket.shutdownOutput();
+      } catch (IOException e) {
+        // the receiver stops and leaves the documents in flight to the others
+        close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {
+        receiver.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // a document may have been put in flight after the receiver stopped
+      requeueInFlight();
+      if (alive.decrementAndGet() == 0) {
+        // no connection is left, fail the documents nobody will send
+        disconnected = true;
+        failPending();
+      }
+    }
+
+    /**
+     * Read the responses until the server closes the connection.
+     */
+    private void receive() {
+      String error = "-> ERROR: Connection closed by the server";
+      try {
+        while (true) {
+          int requestId;
+          try {
+            requestId = in.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          int status = in.readInt();
+          byte[] payload = new byte[FramedProtocol.readLength(in)];
+          in.readFully(payload);
+          Document document = inFlight.remove(requestId);
+          if (document == null) {
+            // a busy response, the server closes the connection
+            error = new String(payload, StandardCharsets.UTF_8);
+            break;
+          }
+          slots.release();
+          received(document, status == FramedProtocol.OK, payload);
+        }
+      } catch (IOException e) {
+        error = "-> ERROR: " + e.getMessage();
+      } finally {
+        close();
+        if (!inFlight.isEmpty()) {
+          System.err.println(Thread.currentThread().getName() + ": " + error.trim()
+              + ", resending " + inFlight.size() + " documents");
+        }
+        requeueInFlight();
+        slots.release(depth);
+      }
+    }
+
+    private void close() {
+      closed = true;
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+
+    /**
+     * Give the documents of the connection which will not be answered back
+     * to the other connections; if none is left they are failed by the last
+     * one to stop.
+     */
+    private void requeueInFlight() {
+      for (Integer id : inFlight.keySet()) {
+        Document document = inFlight.remove(id);
+        if (document != null) {
+          pending.addFirst(document);
+        }
+      }
+    }
+  }
+
+}
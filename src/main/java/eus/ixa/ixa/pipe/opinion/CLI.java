@@ -18,20 +18,27 @@ package eus.ixa.ixa.pipe.opinion;
 
 import ixa.kaflib.KAFDocument;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -69,6 +76,11 @@ public class CLI {
    * Name space of the arguments provided at the CLI.
    */
   private Namespace parsedArguments = null;
+  /**
+   * The worker threads splitting the documents, shared by the annotators of
+   * every stage and every batch thread; created when first needed.
+   */
+  private ExecutorService chunkExecutor = null;
   /**
    * Argument parser instance.
    */
@@ -97,6 +109,14 @@ private Subparser aspectParser;
  * Parser to manage the polarity sub-command.
  */
 private Subparser polarityParser;
+  /**
+   * Parser to manage the pipeline sub-command.
+   */
+  private Subparser pipelineParser;
+  /**
+   * Parser to compile polarity lexicons.
+   */
+  private Subparser lexiconParser;
   /**
    * Parser to start TCP socket for server-client functionality.
    */
@@ -110,6 +130,8 @@ private Subparser polarityParser;
   private static final String OTE_PARSER_NAME = "ote";
   private static final String ASPECT_PARSER_NAME = "aspect";
   private static final String POLARITY_PARSER_NAME = "pol";
+  private static final String PIPELINE_PARSER_NAME = "pipeline";
+  private static final String LEXICON_PARSER_NAME = "lexicon";
   private static final String SERVER_PARSER_NAME = "server";
   private static final String CLIENT_PARSER_NAME = "client";
   
@@ -126,6 +148,10 @@ private Subparser polarityParser;
     loadAspectParameters();
     polarityParser = subParsers.addParser(POLARITY_PARSER_NAME).help("Polarity tagging parser");
     loadPolarityParameters();
+    pipelineParser = subParsers.addParser(PIPELINE_PARSER_NAME).help("Several annotators in one pass CLI");
+    loadPipelineParameters();
+    lexiconParser = subParsers.addParser(LEXICON_PARSER_NAME).help("Polarity lexicon compilation CLI");
+    loadLexiconParameters();
     serverParser = subParsers.addParser("server").help("Start TCP socket server");
     loadServerParameters();
     clientParser = subParsers.addParser("client").help("Send queries to the TCP socket server");
@@ -175,6 +201,12 @@ private Subparser polarityParser;
       case POLARITY_PARSER_NAME:
         extractPolarity(System.in, System.out);
         break;
+      case PIPELINE_PARSER_NAME:
+        pipeline(System.in, System.out);
+        break;
+      case LEXICON_PARSER_NAME:
+        compileLexicon();
+        break;
       case SERVER_PARSER_NAME:
         server();
         break;
@@ -185,7 +217,7 @@ private Subparser polarityParser;
     } catch (ArgumentParserException e) {
       argParser.handleError(e);
       System.out.println("Run java -jar target/ixa-pipe-opinion-" + version
-          + ".jar (absa|aspect|ote|pol|server|client) -help for details");
+          + ".jar (absa|aspect|ote|pol|pipeline|lexicon|server|client) -help for details");
       System.exit(1);
     }
   }
@@ -208,14 +240,21 @@ private Subparser polarityParser;
         inputStream, StandardCharsets.UTF_8));
     BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(
         outputStream, StandardCharsets.UTF_8));
-    //read KAF document from inputstream
-    KAFDocument kaf = KAFDocument.createFromStream(breader);
     // load parameters into a properties
     String targetModel = parsedArguments.getString("targetModel");
     String polarityModel = parsedArguments.getString("polarityModel");
     String outputFormat = parsedArguments.getString("outputFormat");
     String clearFeatures = parsedArguments.getString("clearFeatures");
     String dictionary = parsedArguments.getString("dictionary");
+    BatchAnnotator.AnnotatorFactory factory = parallelize(language -> new AnnotateAbsa(
+        setOteProperties(targetModel, language, clearFeatures),
+        setPolarityProperties(polarityModel, dictionary, language, clearFeatures)));
+    if (isBatch()) {
+      annotateBatch(breader, bwriter, targetModel, factory);
+      return;
+    }
+    //read KAF document from inputstream
+    KAFDocument kaf = NAFSerializer.read(breader, parsedArguments.getBoolean("passThrough"));
     //language parameter
     String lang;
     if (parsedArguments.getString("language") != null) {
@@ -228,21 +267,18 @@ private Subparser polarityParser;
     } else {
       lang = kaf.getLang();
     }
-    Properties oteProperties = setOteProperties(targetModel, lang, clearFeatures);
-    Properties polProperties = setPolarityProperties(polarityModel, dictionary, lang, clearFeatures);
-    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "opinions", "ixa-pipe-opinion-" + Files.getNameWithoutExtension(targetModel), version + "-" + commit);
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(kaf,
+        "ixa-pipe-opinion-" + Files.getNameWithoutExtension(targetModel), version + "-" + commit,
+        parsedArguments.getBoolean("incremental"));
     newLp.setBeginTimestamp();
-    AnnotateAbsa absaAnnotator = new AnnotateAbsa(oteProperties, polProperties);
+    Annotate absaAnnotator = factory.create(lang);
     absaAnnotator.annotate(kaf);
     newLp.setEndTimestamp();
-    String kafToString = null;
-    if (outputFormat.equalsIgnoreCase("tabulated")) {
-      kafToString = absaAnnotator.annotateToNAF(kaf);
-    } else {
-      kafToString = absaAnnotator.annotateToNAF(kaf);
+    if (absaAnnotator instanceof AnnotateAbsa) {
+      System.err.println("Polarity classifications saved: "
+          + ((AnnotateAbsa) absaAnnotator).getSavedClassifications());
     }
-    bwriter.write(kafToString);
+    writeAnnotations(absaAnnotator, kaf, outputFormat, bwriter);
     bwriter.close();
     breader.close();
   }
@@ -265,12 +301,18 @@ private Subparser polarityParser;
         inputStream, StandardCharsets.UTF_8));
     BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(
         outputStream, StandardCharsets.UTF_8));
-    // read KAF document from inputstream
-    KAFDocument kaf = KAFDocument.createFromStream(breader);
     // load parameters into a properties
     String model = parsedArguments.getString("model");
     String outputFormat = parsedArguments.getString("outputFormat");
     String clearFeatures = parsedArguments.getString("clearFeatures");
+    BatchAnnotator.AnnotatorFactory factory = parallelize(language -> new AnnotateTargets(
+        setOteProperties(model, language, clearFeatures)));
+    if (isBatch()) {
+      annotateBatch(breader, bwriter, model, factory);
+      return;
+    }
+    // read KAF document from inputstream
+    KAFDocument kaf = NAFSerializer.read(breader, parsedArguments.getBoolean("passThrough"));
     // language parameter
     String lang;
     if (parsedArguments.getString("language") != null) {
@@ -283,20 +325,14 @@ private Subparser polarityParser;
     } else {
       lang = kaf.getLang();
     }
-    Properties properties = setOteProperties(model, lang, clearFeatures);
-    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "opinions", "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model), version + "-" + commit);
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(kaf,
+        "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model), version + "-" + commit,
+        parsedArguments.getBoolean("incremental"));
     newLp.setBeginTimestamp();
-    AnnotateTargets oteExtractor = new AnnotateTargets(properties);
+    Annotate oteExtractor = factory.create(lang);
     oteExtractor.annotate(kaf);
     newLp.setEndTimestamp();
-    String kafToString = null;
-    if (outputFormat.equalsIgnoreCase("tabulated")) {
-      kafToString = oteExtractor.annotateToNAF(kaf);
-    } else {
-      kafToString = oteExtractor.annotateToNAF(kaf);
-    }
-    bwriter.write(kafToString);
+    writeAnnotations(oteExtractor, kaf, outputFormat, bwriter);
     bwriter.close();
     breader.close();
   }
@@ -319,13 +355,25 @@ private Subparser polarityParser;
         inputStream, StandardCharsets.UTF_8));
     BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(
         outputStream, StandardCharsets.UTF_8));
-    // read KAF document from inputstream
-    KAFDocument kaf = KAFDocument.createFromStream(breader);
     // load parameters into a properties
     String tagger = parsedArguments.getString("tagger");
     String model = parsedArguments.getString("model");
     String outputFormat = parsedArguments.getString("outputFormat");
     String clearFeatures = parsedArguments.getString("clearFeatures");
+    BatchAnnotator.AnnotatorFactory factory = parallelize(language -> {
+      Properties properties = setAspectProperties(tagger, model, language, clearFeatures);
+      if (tagger.equalsIgnoreCase("doc")) {
+        return new DocAnnotateAspects(properties);
+      } else {
+        return new SeqAnnotateAspects(properties);
+      }
+    });
+    if (isBatch()) {
+      annotateBatch(breader, bwriter, model, factory);
+      return;
+    }
+    // read KAF document from inputstream
+    KAFDocument kaf = NAFSerializer.read(breader, parsedArguments.getBoolean("passThrough"));
     // language parameter
     String lang;
     if (parsedArguments.getString("language") != null) {
@@ -338,25 +386,14 @@ private Subparser polarityParser;
     } else {
       lang = kaf.getLang();
     }
-    Properties properties = setAspectProperties(tagger, model, lang, clearFeatures);
-    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "opinions", "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model), version + "-" + commit);
-    Annotate aspectExtractor;
-    if (tagger.equalsIgnoreCase("doc")) {
-      aspectExtractor = new DocAnnotateAspects(properties);
-    } else {
-      aspectExtractor = new SeqAnnotateAspects(properties);
-    }
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(kaf,
+        "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model), version + "-" + commit,
+        parsedArguments.getBoolean("incremental"));
+    Annotate aspectExtractor = factory.create(lang);
     newLp.setBeginTimestamp();
     aspectExtractor.annotate(kaf);
     newLp.setEndTimestamp();
-    String kafToString;
-    if (outputFormat.equalsIgnoreCase("tabulated")) {
-      kafToString = aspectExtractor.annotateToNAF(kaf);
-    } else {
-      kafToString = aspectExtractor.annotateToNAF(kaf);
-    }
-    bwriter.write(kafToString);
+    writeAnnotations(aspectExtractor, kaf, outputFormat, bwriter);
     bwriter.close();
     breader.close();
   }
@@ -379,13 +416,19 @@ private Subparser polarityParser;
         inputStream, StandardCharsets.UTF_8));
     BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(
         outputStream, StandardCharsets.UTF_8));
-    // read KAF document from inputstream
-    KAFDocument kaf = KAFDocument.createFromStream(breader);
     // load parameters into a properties
     String model = parsedArguments.getString("model");
     String dictionary = parsedArguments.getString("dictionary");
     String outputFormat = parsedArguments.getString("outputFormat");
     String clearFeatures = parsedArguments.getString("clearFeatures");
+    BatchAnnotator.AnnotatorFactory factory = parallelize(language -> new AnnotatePolarity(
+        setPolarityProperties(model, dictionary, language, clearFeatures)));
+    if (isBatch()) {
+      annotateBatch(breader, bwriter, model, factory);
+      return;
+    }
+    // read KAF document from inputstream
+    KAFDocument kaf = NAFSerializer.read(breader, parsedArguments.getBoolean("passThrough"));
     // language parameter
     String lang;
     if (parsedArguments.getString("language") != null) {
@@ -398,25 +441,282 @@ private Subparser polarityParser;
     } else {
       lang = kaf.getLang();
     }
-    Properties properties = setPolarityProperties(model, dictionary, lang, clearFeatures);
-    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "opinions", "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model), version + "-" + commit);
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(kaf,
+        "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model), version + "-" + commit,
+        parsedArguments.getBoolean("incremental"));
     newLp.setBeginTimestamp();
-    AnnotatePolarity polarityExtractor = new AnnotatePolarity(properties);
+    Annotate polarityExtractor = factory.create(lang);
     polarityExtractor.annotate(kaf);
     newLp.setEndTimestamp();
-    String kafToString = null;
-    if (outputFormat.equalsIgnoreCase("tabulated")) {
-      kafToString = polarityExtractor.annotatePolarityToTabulated(kaf);
+    writeAnnotations(polarityExtractor, kaf, outputFormat, bwriter);
+    bwriter.close();
+    breader.close();
+  }
+
+  /**
+   * Main method to run several annotators over each document, parsing and
+   * serializing it only once.
+   *
+   * @param inputStream
+   *          the input stream containing the content to tag
+   * @param outputStream
+   *          the output stream providing the annotations
+   * @throws IOException
+   *           exception if problems in input or output streams
+   * @throws JDOMException if xml formatting problems
+   */
+  public final void pipeline(final InputStream inputStream,
+      final OutputStream outputStream) throws IOException, JDOMException {
+
+    BufferedReader breader = new BufferedReader(new InputStreamReader(
+        inputStream, StandardCharsets.UTF_8));
+    BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(
+        outputStream, StandardCharsets.UTF_8));
+    // load parameters into a properties
+    List<String> stages = Arrays.asList(parsedArguments.getString("stages").split(","));
+    String outputFormat = parsedArguments.getString("outputFormat");
+    String processorName = String.join("-", stages);
+    // every stage splits the documents on its own, so that the opinions of
+    // each stage stay together as in sequential annotation
+    boolean split = isSplit();
+    BatchAnnotator.AnnotatorFactory factory = language -> {
+      Properties properties = setPipelineProperties(language);
+      List<Annotate> annotators = new ArrayList<>();
+      for (String stage : stages) {
+        annotators.add(split ? new ParallelAnnotator(
+            stageLanguage -> AnnotatePipeline.createStage(stage, properties), language,
+            properties.getProperty("clearFeatures"), parsedArguments.getInt("workers"),
+            getChunkExecutor())
+            : AnnotatePipeline.createStage(stage, properties));
+      }
+      return new AnnotatePipeline(stages, annotators);
+    };
+    if (isBatch()) {
+      annotateBatch(breader, bwriter, processorName, factory);
+      return;
+    }
+    // read KAF document from inputstream
+    KAFDocument kaf = NAFSerializer.read(breader, parsedArguments.getBoolean("passThrough"));
+    // language parameter
+    String lang;
+    if (parsedArguments.getString("language") != null) {
+      lang = parsedArguments.getString("language");
+      if (!kaf.getLang().equalsIgnoreCase(lang)) {
+        System.err
+            .println("Language parameter in NAF and CLI do not match!!");
+        System.exit(1);
+      }
     } else {
-      kafToString = polarityExtractor.annotateToNAF(kaf);
+      lang = kaf.getLang();
     }
-    bwriter.write(kafToString);
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(kaf,
+        "ixa-pipe-opinion-" + processorName, version + "-" + commit,
+        parsedArguments.getBoolean("incremental"));
+    newLp.setBeginTimestamp();
+    Annotate pipeline = factory.create(lang);
+    pipeline.annotate(kaf);
+    newLp.setEndTimestamp();
+    writeAnnotations(pipeline, kaf, outputFormat, bwriter);
     bwriter.close();
     breader.close();
   }
 
-  
+  /**
+   * Write an annotated document in the output format: the opinions only,
+   * tabulated or as JSON Lines, or the whole NAF document.
+   * @param annotator the annotator
+   * @param kaf the annotated document
+   * @param outputFormat the output format
+   * @param bwriter the output
+   * @throws IOException if io problems
+   */
+  private void writeAnnotations(final Annotate annotator, final KAFDocument kaf,
+      final String outputFormat, final BufferedWriter bwriter) throws IOException {
+    if (OpinionWriter.isOpinionFormat(outputFormat)) {
+      new OpinionWriter(outputFormat).write(kaf, bwriter);
+    } else {
+      annotator.annotateToNAF(kaf, bwriter);
+    }
+  }
+
+  /**
+   * Split every document among several worker threads if requested.
+   * @param factory creates the annotator of each worker
+   * @return the factory of the annotators to use
+   */
+  private BatchAnnotator.AnnotatorFactory parallelize(final BatchAnnotator.AnnotatorFactory factory) {
+    if (!isSplit()) {
+      return factory;
+    }
+    String clearFeatures = parsedArguments.getString("clearFeatures");
+    int workers = parsedArguments.getInt("workers");
+    return language -> new ParallelAnnotator(factory, language, clearFeatures, workers,
+        getChunkExecutor());
+  }
+
+  /**
+   * Get the worker threads splitting the documents, so that the number of
+   * threads is that of the workers option whatever the number of stages and
+   * batch threads.
+   * @return the worker threads
+   */
+  private synchronized ExecutorService getChunkExecutor() {
+    if (chunkExecutor == null) {
+      chunkExecutor = ParallelAnnotator.newExecutor(parsedArguments.getInt("workers"));
+    }
+    return chunkExecutor;
+  }
+
+  /**
+   * Whether the documents are to be split among several worker threads. The
+   * parts of a document are only independent if the adaptive features are
+   * cleared every sentence or at every -DOCSTART- mark, otherwise the
+   * documents are annotated sequentially.
+   * @return true if the documents are split
+   */
+  private boolean isSplit() {
+    if (parsedArguments.getInt("workers") < 2) {
+      return false;
+    }
+    if (parsedArguments.getString("clearFeatures").equalsIgnoreCase("no")) {
+      System.err.println("-> Splitting documents requires --clearFeatures yes or docstart, "
+          + "they will be annotated sequentially");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Whether the batch or the streaming mode was chosen for an annotation
+   * sub-command, both of which create the annotator once the language of
+   * the documents is known.
+   * @return true if several documents are to be annotated, or one streamed
+   */
+  private boolean isBatch() {
+    return parsedArguments.getBoolean("batch")
+        || parsedArguments.getBoolean("stream")
+        || parsedArguments.getInt("parallel") > 1
+        || parsedArguments.getString("fileList") != null
+        || parsedArguments.getString("inputDir") != null;
+  }
+
+  /**
+   * Annotate one NAF document in constant memory, reading it sentence by
+   * sentence with a pull parser.
+   *
+   * @param breader the input stream
+   * @param bwriter the output stream
+   * @param model the model whose name identifies the linguistic processor
+   * @param factory creates the annotator for the language of the document
+   * @throws IOException if io problems
+   */
+  private void annotateStreaming(final BufferedReader breader,
+      final BufferedWriter bwriter, final String model,
+      final BatchAnnotator.AnnotatorFactory factory) throws IOException {
+
+    String dictionary = parsedArguments.getString("dictionary");
+    if (dictionary != null && !dictionary.equalsIgnoreCase(Flags.DEFAULT_DICT_OPTION)) {
+      System.err.println("The streaming mode cannot add the term polarities of a dictionary!!");
+      System.exit(1);
+    }
+    if (parsedArguments.getBoolean("incremental")) {
+      System.err.println("The streaming mode replaces the opinions and cannot be incremental!!");
+      System.exit(1);
+    }
+    StreamingAnnotator streamingAnnotator = new StreamingAnnotator(factory,
+        parsedArguments.getString("language"),
+        "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model),
+        version + "-" + commit);
+    streamingAnnotator.setOutputFormat(parsedArguments.getString("outputFormat"));
+    setSentenceCache();
+    streamingAnnotator.annotate(breader, bwriter);
+    bwriter.close();
+    breader.close();
+    System.err.println("Annotated " + streamingAnnotator.getSentences()
+        + " sentences, " + streamingAnnotator.getOpinions() + " opinions");
+  }
+
+  /**
+   * Annotate many NAF documents loading the models only once. The documents
+   * are read from the files in the fileList or the inputDir options or, if
+   * none is given, from the input as a stream of concatenated documents.
+   *
+   * @param breader the input stream
+   * @param bwriter the output stream
+   * @param model the model whose name identifies the linguistic processor
+   * @param factory creates the annotator for the language of the documents
+   * @throws IOException if io problems
+   */
+  private void annotateBatch(final BufferedReader breader,
+      final BufferedWriter bwriter, final String model,
+      final BatchAnnotator.AnnotatorFactory factory) throws IOException {
+
+    if (parsedArguments.getBoolean("stream")) {
+      annotateStreaming(breader, bwriter, model, factory);
+      return;
+    }
+    String fileList = parsedArguments.getString("fileList");
+    String inputDir = parsedArguments.getString("inputDir");
+    String outputDir = parsedArguments.getString("outputDir");
+    BatchAnnotator batchAnnotator = new BatchAnnotator(factory,
+        parsedArguments.getString("language"),
+        "ixa-pipe-opinion-" + Files.getNameWithoutExtension(model),
+        version + "-" + commit, parsedArguments.getInt("parallel"));
+    batchAnnotator.setOutputFormat(parsedArguments.getString("outputFormat"));
+    batchAnnotator.setIncremental(parsedArguments.getBoolean("incremental"));
+    batchAnnotator.setPassThrough(parsedArguments.getBoolean("passThrough"));
+    setSentenceCache();
+    boolean printMetrics = parsedArguments.getBoolean("metrics");
+    if (printMetrics) {
+      Metrics.get().reset();
+      Metrics.register();
+    }
+    File outputDirectory = outputDir == null ? null : new File(outputDir);
+    if (fileList != null) {
+      batchAnnotator.annotateFiles(BatchAnnotator.readFileList(new File(fileList)),
+          null, outputDirectory, bwriter);
+    } else if (inputDir != null) {
+      batchAnnotator.annotateFiles(BatchAnnotator.listFiles(new File(inputDir)),
+          new File(inputDir), outputDirectory, bwriter);
+    } else {
+      batchAnnotator.annotateStream(breader, bwriter);
+    }
+    bwriter.close();
+    breader.close();
+    System.err.println("Annotated " + batchAnnotator.getAnnotated()
+        + " documents, skipped " + batchAnnotator.getFailed());
+    if (printMetrics) {
+      System.err.print(Metrics.get().getReport());
+    }
+  }
+
+  /**
+   * Enable the sentence results cache of the models if requested. The results
+   * of a sentence only depend on its tokens if the adaptive features are
+   * cleared after every sentence, otherwise the cache is not used.
+   */
+  private void setSentenceCache() {
+    int sentenceCache = parsedArguments.getInt("sentenceCache");
+    if (sentenceCache > 0 && !parsedArguments.getString("clearFeatures").equalsIgnoreCase("yes")) {
+      System.err.println("-> The sentence cache requires --clearFeatures yes, it will not be used");
+    }
+    ModelRegistry.setSentenceCacheSize(sentenceCache);
+  }
+
+  /**
+   * Compile a text polarity lexicon into a binary file which can be passed
+   * to the dictionary option of the polarity tagger.
+   * @throws IOException if io problems
+   */
+  public final void compileLexicon() throws IOException {
+
+    String dictionary = parsedArguments.getString("dictionary");
+    String output = parsedArguments.getString("output");
+    try (InputStream textLexicon = new FileInputStream(dictionary)) {
+      PolarityLexicon.compile(textLexicon, new File(output));
+    }
+  }
+
   /**
    * Set up the TCP socket for annotation.
    * @throws IOException if io problems
@@ -425,20 +725,51 @@ private Subparser polarityParser;
 
     // load parameters into a properties
     String port = parsedArguments.getString("port");
-    String oteModel = parsedArguments.getString("targetModel");
-    String polModel = parsedArguments.getString("polarityModel");
-    String clearFeatures = parsedArguments.getString("clearFeatures");
+    String threads = parsedArguments.getString("threads");
+    String queueSize = parsedArguments.getString("queueSize");
+    String protocol = parsedArguments.getString("protocol");
+    String reloadModels = parsedArguments.getString("reloadModels");
+    String metricsPort = parsedArguments.getString("metricsPort");
+    String maxDocumentSize = parsedArguments.getString("maxDocumentSize");
+    String deadline = parsedArguments.getString("deadline");
+    String batchSize = parsedArguments.getString("batchSize");
+    String batchDelay = parsedArguments.getString("batchDelay");
+    String stages = parsedArguments.getString("stages");
     String outputFormat = parsedArguments.getString("outputFormat");
-    String dictionary = parsedArguments.getString("dictionary");
     // language parameter
     String lang = parsedArguments.getString("language");
-    Properties oteProperties = setOteProperties(oteModel, lang, clearFeatures);
-    Properties polProperties = setPolarityProperties(polModel, dictionary, lang, clearFeatures);
-    new OpinionTaggerServer(port, oteProperties, polProperties);
+    Properties serverProperties = setServerProperties(port, threads, queueSize, protocol);
+    serverProperties.setProperty("stages", stages);
+    serverProperties.setProperty("outputFormat", outputFormat);
+    serverProperties.setProperty("reloadModels", reloadModels);
+    serverProperties.setProperty("metricsPort", metricsPort);
+    serverProperties.setProperty("maxDocumentSize", maxDocumentSize);
+    serverProperties.setProperty("deadline", deadline);
+    serverProperties.setProperty("incremental", Boolean.toString(parsedArguments.getBoolean("incremental")));
+    serverProperties.setProperty("passThrough", Boolean.toString(parsedArguments.getBoolean("passThrough")));
+    serverProperties.setProperty("batchSize", batchSize);
+    serverProperties.setProperty("batchDelay", batchDelay);
+    serverProperties.setProperty("reactors", parsedArguments.getString("reactors"));
+    serverProperties.setProperty("idleTimeout", parsedArguments.getString("idleTimeout"));
+    serverProperties.setProperty("warmup", parsedArguments.getString("warmup"));
+    if (parsedArguments.getString("warmupCorpus") != null) {
+      serverProperties.setProperty("warmupCorpus", parsedArguments.getString("warmupCorpus"));
+    }
+    if (parsedArguments.getString("readyFile") != null) {
+      serverProperties.setProperty("readyFile", parsedArguments.getString("readyFile"));
+    }
+    setSentenceCache();
+    if (protocol.equalsIgnoreCase("http")) {
+      new OpinionHttpServer(serverProperties, setPipelineProperties(lang));
+    } else {
+      new OpinionTaggerServer(serverProperties, setPipelineProperties(lang));
+    }
   }
   
   /**
-   * The client to query the TCP server for annotation.
+   * The client to query the TCP server for annotation. With the naf protocol
+   * the document is streamed to the server and the response to the output;
+   * with the framed protocol the documents are sent by a {@link BulkClient}.
    * 
    * @param inputStream
    *          the stdin
@@ -450,36 +781,85 @@ private Subparser polarityParser;
 
     String host = parsedArguments.getString("host");
     String port = parsedArguments.getString("port");
+    String stagesHeader = parsedArguments.getString("stages") == null ? ""
+        : OpinionTaggerServer.STAGES_HEADER + parsedArguments.getString("stages") + "\n";
+    if (parsedArguments.getString("protocol").equalsIgnoreCase("framed")) {
+      bulkClient(inputStream, outputStream, host, port, stagesHeader);
+      return;
+    }
+    if (parsedArguments.getInt("connections") > 1 || parsedArguments.getString("fileList") != null
+        || parsedArguments.getString("inputDir") != null) {
+      System.err.println("Sending many documents requires --protocol framed!");
+      System.exit(1);
+    }
     try (Socket socketClient = new Socket(host, Integer.parseInt(port));
-         BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
-            System.in, StandardCharsets.UTF_8));
-         BufferedWriter outToUser = new BufferedWriter(new OutputStreamWriter(
-            System.out, StandardCharsets.UTF_8));
-         BufferedWriter outToServer = new BufferedWriter(new OutputStreamWriter(
-            socketClient.getOutputStream(), StandardCharsets.UTF_8));
-         BufferedReader inFromServer = new BufferedReader(new InputStreamReader(
-            socketClient.getInputStream(), StandardCharsets.UTF_8))) {
-
-      // send data to server socket
-      StringBuilder inText = new StringBuilder();
-      String line;
-      while ((line = inFromUser.readLine()) != null) {
-        inText.append(line).append("\n");
-      }
-      inText.append("<ENDOFDOCUMENT>").append("\n");
-      outToServer.write(inText.toString());
+         OutputStream outToServer = new BufferedOutputStream(socketClient.getOutputStream());
+         InputStream inFromServer = socketClient.getInputStream()) {
+
+      // stream the document to the server socket
+      outToServer.write(stagesHeader.getBytes(StandardCharsets.UTF_8));
+      copy(inputStream, outToServer);
+      outToServer.write(("\n" + BatchAnnotator.END_OF_DOCUMENT + "\n").getBytes(StandardCharsets.UTF_8));
       outToServer.flush();
-      
-      // get data from server
-      StringBuilder sb = new StringBuilder();
-      String kafString;
-      while ((kafString = inFromServer.readLine()) != null) {
-        sb.append(kafString).append("\n");
+
+      // stream the response of the server
+      copy(inFromServer, outputStream);
+      outputStream.flush();
+    } catch (UnknownHostException e) {
+      System.err.println("ERROR: Unknown hostname or IP address!");
+      System.exit(1);
+    } catch (NumberFormatException e) {
+      System.err.println("Port number not correct!");
+      System.exit(1);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+  }
+
+  /**
+   * The client for the framed protocol. The NAF documents of the input
+   * (each one ending with a {@code </NAF>} or {@code <ENDOFDOCUMENT>} line)
+   * or of the fileList or inputDir options are pipelined over one or more
+   * connections, and the throughput and latencies are reported at the end.
+   *
+   * @param inputStream
+   *          the stdin
+   * @param outputStream
+   *          stdout
+   * @param host the hostname of the server
+   * @param port the port of the server
+   * @param stagesHeader the line choosing the stages sent before every
+   *          document, empty for the default stages of the server
+   */
+  private void bulkClient(final InputStream inputStream,
+      final OutputStream outputStream, String host, String port, String stagesHeader) {
+
+    String fileList = parsedArguments.getString("fileList");
+    String inputDir = parsedArguments.getString("inputDir");
+    String outputDir = parsedArguments.getString("outputDir");
+    File outputDirectory = outputDir == null ? null : new File(outputDir);
+    BulkClient bulkClient = new BulkClient(host, Integer.parseInt(port),
+        parsedArguments.getInt("connections"), parsedArguments.getInt("depth"), stagesHeader);
+    try {
+      if (fileList != null) {
+        bulkClient.annotateFiles(BatchAnnotator.readFileList(new File(fileList)),
+            null, outputDirectory, outputStream);
+      } else if (inputDir != null) {
+        bulkClient.annotateFiles(BatchAnnotator.listFiles(new File(inputDir)),
+            new File(inputDir), outputDirectory, outputStream);
+      } else {
+        bulkClient.annotateStream(new BufferedReader(new InputStreamReader(
+            inputStream, StandardCharsets.UTF_8)), outputStream);
       }
-      outToUser.write(sb.toString());
-    } catch (UnsupportedEncodingException e) {
-      //this cannot happen but...
-      throw new AssertionError("UTF-8 not supported");
+      System.err.print(bulkClient.getReport());
     } catch (UnknownHostException e) {
       System.err.println("ERROR: Unknown hostname or IP address!");
       System.exit(1);
@@ -512,15 +892,16 @@ private Subparser polarityParser;
         .required(false)
         .choices("en", "es", "fr", "nl", "ru", "tr")
         .help("Choose language; it defaults to the language value in incoming NAF file.\n");
+    loadBatchParameters(absaParser);
     absaParser.addArgument("-o","--outputFormat")
         .required(false)
-        .choices("naf", "tabulated")
+        .choices("naf", "tabulated", "jsonl")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
-        .help("Choose output format; it defaults to NAF.\n");
+        .help("Choose output format: NAF, or only the opinions tabulated or as JSON Lines; it defaults to NAF.\n");
     absaParser.addArgument("-d","--dictionary")
     .required(false)
     .setDefault(Flags.DEFAULT_DICT_OPTION)
-    .help("Provide polarity lexicon to tag polarity at token/lemma level.\n");
+    .help("Provide polarity lexicon, text or compiled, to tag polarity at token/lemma level.\n");
   }
   
   /**
@@ -541,11 +922,12 @@ private Subparser polarityParser;
         .required(false)
         .choices("en")
         .help("Choose language; it defaults to the language value in incoming NAF file.\n");
+    loadBatchParameters(oteParser);
     oteParser.addArgument("-o","--outputFormat")
         .required(false)
-        .choices("naf", "tabulated")
+        .choices("naf", "tabulated", "jsonl")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
-        .help("Choose output format; it defaults to NAF.\n");
+        .help("Choose output format: NAF, or only the opinions tabulated or as JSON Lines; it defaults to NAF.\n");
   }
   
   /**
@@ -570,11 +952,12 @@ private Subparser polarityParser;
         .required(false)
         .choices("en")
         .help("Choose language; it defaults to the language value in incoming NAF file.\n");
+    loadBatchParameters(aspectParser);
     aspectParser.addArgument("-o","--outputFormat")
         .required(false)
-        .choices("naf", "tabulated")
+        .choices("naf", "tabulated", "jsonl")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
-        .help("Choose output format; it defaults to NAF.\n");
+        .help("Choose output format: NAF, or only the opinions tabulated or as JSON Lines; it defaults to NAF.\n");
   }
   
   /**
@@ -595,15 +978,135 @@ private Subparser polarityParser;
         .required(false)
         .choices("en")
         .help("Choose language; it defaults to the language value in incoming NAF file.\n");
+    loadBatchParameters(polarityParser);
     polarityParser.addArgument("-o","--outputFormat")
         .required(false)
-        .choices("naf", "tabulated")
+        .choices("naf", "tabulated", "jsonl")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
-        .help("Choose output format; it defaults to NAF.\n");
+        .help("Choose output format: NAF, or only the opinions tabulated or as JSON Lines; it defaults to NAF.\n");
     polarityParser.addArgument("-d","--dictionary")
         .required(false)
         .setDefault(Flags.DEFAULT_DICT_OPTION)
-        .help("Provide polarity lexicon to tag polarity at token/lemma level.\n");
+        .help("Provide polarity lexicon, text or compiled, to tag polarity at token/lemma level.\n");
+  }
+
+  /**
+   * Create the available parameters for the pipeline of annotators.
+   */
+  private void loadPipelineParameters() {
+
+    pipelineParser.addArgument("-s", "--stages")
+        .required(true)
+        .help("Comma separated list of the annotators to run, in order, among "
+            + String.join(", ", AnnotatePipeline.STAGES) + "; for example ote,aspect,pol.\n");
+    pipelineParser.addArgument("-t", "--targetModel")
+        .required(false)
+        .help("Pass the Opinion Target model, required by the ote and absa stages.\n");
+    pipelineParser.addArgument("-a", "--aspectModel")
+        .required(false)
+        .help("Pass the aspect model, required by the aspect stage.\n");
+    pipelineParser.addArgument("--aspectTagger")
+        .required(false)
+        .choices("doc", "seq")
+        .setDefault("seq")
+        .help("Choose the type of the aspect model: sequence labeler or document classifier; it defaults to seq.\n");
+    pipelineParser.addArgument("--seqAspectModel")
+        .required(false)
+        .help("Pass the sequence labeler aspect model, required by the aspect-seq stage.\n");
+    pipelineParser.addArgument("--docAspectModel")
+        .required(false)
+        .help("Pass the document classifier aspect model, required by the aspect-doc stage.\n");
+    pipelineParser.addArgument("-p", "--polarityModel")
+        .required(false)
+        .help("Pass the polarity classification model, required by the pol and absa stages.\n");
+    pipelineParser.addArgument("-d","--dictionary")
+        .required(false)
+        .setDefault(Flags.DEFAULT_DICT_OPTION)
+        .help("Provide polarity lexicon, text or compiled, to tag polarity at token/lemma level in the pol stage.\n");
+    pipelineParser.addArgument("--clearFeatures")
+        .required(false)
+        .choices("yes", "no", "docstart")
+        .setDefault(Flags.DEFAULT_FEATURE_FLAG)
+        .help("Reset the adaptive features every sentence; defaults to 'no'; if -DOCSTART- marks" +
+                " are present, choose 'docstart'.\n");
+    pipelineParser.addArgument("-l","--language")
+        .required(false)
+        .choices("en", "es", "fr", "nl", "ru", "tr")
+        .help("Choose language; it defaults to the language value in incoming NAF file.\n");
+    loadBatchParameters(pipelineParser);
+    pipelineParser.addArgument("-o","--outputFormat")
+        .required(false)
+        .choices("naf", "tabulated", "jsonl")
+        .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
+        .help("Choose output format: NAF, or only the opinions tabulated or as JSON Lines; it defaults to NAF.\n");
+  }
+
+  /**
+   * Create the parameters of the batch, streaming, pass-through and
+   * incremental modes of an annotation sub-command.
+   * @param parser the parser of the sub-command
+   */
+  private void loadBatchParameters(Subparser parser) {
+
+    parser.addArgument("--batch")
+        .action(Arguments.storeTrue())
+        .help("Annotate a stream of concatenated NAF documents, each one ending with a </NAF> or "
+            + BatchAnnotator.END_OF_DOCUMENT + " line, loading the models only once.\n");
+    parser.addArgument("--fileList")
+        .required(false)
+        .help("Annotate the NAF files listed in this file, one path per line.\n");
+    parser.addArgument("--inputDir")
+        .required(false)
+        .help("Annotate every NAF file in this directory.\n");
+    parser.addArgument("--outputDir")
+        .required(false)
+        .help("Write every annotated file to this directory instead of the standard output.\n");
+    parser.addArgument("--parallel")
+        .required(false)
+        .type(Integer.class)
+        .setDefault(1)
+        .help("Number of threads annotating documents in batch mode, each one with its own annotator; "
+            + "output to standard output keeps the input order.\n");
+    parser.addArgument("--sentenceCache")
+        .required(false)
+        .type(Integer.class)
+        .setDefault(0)
+        .help("Cache the results of up to this number of different sentences per model, so that repeated sentences "
+            + "are not annotated again; it requires --clearFeatures yes; it defaults to 0 (no cache).\n");
+    parser.addArgument("--workers")
+        .required(false)
+        .type(Integer.class)
+        .setDefault(1)
+        .help("Split each document into chunks of independent sentences, or of -DOCSTART- segments, annotated by "
+            + "this number of threads; it requires --clearFeatures yes or docstart; it defaults to 1.\n");
+    parser.addArgument("--metrics")
+        .action(Arguments.storeTrue())
+        .help("Print the throughput, document sizes and time of every annotation stage at the end of a batch run.\n");
+    parser.addArgument("--stream")
+        .action(Arguments.storeTrue())
+        .help("Annotate a very large NAF document in constant memory, reading its text and terms sentence by sentence "
+            + "and annotating every sentence on its own; an existing opinion layer is replaced.\n");
+    parser.addArgument("--passThrough")
+        .action(Arguments.storeTrue())
+        .help("Parse only the header, text, term and opinion layers and copy every other layer of the NAF documents "
+            + "through unchanged.\n");
+    parser.addArgument("--incremental")
+        .action(Arguments.storeTrue())
+        .help("Re-annotate documents incrementally: if their opinions were produced by the same model, version and commit, "
+            + "annotate only the sentences without opinions; otherwise replace the stale opinions.\n");
+  }
+
+  /**
+   * Create the available parameters for polarity lexicon compilation.
+   */
+  private void loadLexiconParameters() {
+
+    lexiconParser.addArgument("-d", "--dictionary")
+        .required(true)
+        .help("Pass the text polarity lexicon, one word and its polarity per line separated by a tab.\n");
+    lexiconParser.addArgument("-o", "--output")
+        .required(true)
+        .help("Path of the compiled lexicon.\n");
   }
 
   /**
@@ -614,12 +1117,106 @@ private Subparser polarityParser;
     serverParser.addArgument("--port")
         .required(true)
         .help("Port to be assigned to the server.\n");
+    serverParser.addArgument("--threads")
+        .required(false)
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors()))
+        .help("Number of worker threads, each one with its own annotator; it defaults to the number of available processors.\n");
+    serverParser.addArgument("--queueSize")
+        .required(false)
+        .setDefault("100")
+        .help("Maximum number of requests waiting for a free worker; when it is full new requests get a busy response; "
+            + "it defaults to 100.\n");
+    serverParser.addArgument("--maxDocumentSize")
+        .required(false)
+        .setDefault("16777216")
+        .help("Maximum size of a document in bytes, larger documents get an error response; 0 for no limit; "
+            + "it defaults to 16777216 (16 MB).\n");
+    serverParser.addArgument("--deadline")
+        .required(false)
+        .setDefault("0")
+        .help("Maximum time in milliseconds to annotate a document; when it expires the annotation stops at a "
+            + "sentence boundary and an error is returned; it defaults to 0 (no deadline).\n");
+    serverParser.addArgument("--batchSize")
+        .required(false)
+        .setDefault("0")
+        .help("Annotate the sentences of concurrent requests together in batches of up to this size; "
+            + "it requires --clearFeatures yes; it defaults to 0 (no batching).\n");
+    serverParser.addArgument("--batchDelay")
+        .required(false)
+        .setDefault("2")
+        .help("Maximum time in milliseconds a sentence waits for others to fill its batch; it defaults to 2.\n");
+    serverParser.addArgument("--sentenceCache")
+        .required(false)
+        .type(Integer.class)
+        .setDefault(0)
+        .help("Cache the results of up to this number of different sentences per model, so that repeated sentences "
+            + "are not annotated again; it requires --clearFeatures yes; it defaults to 0 (no cache).\n");
+    serverParser.addArgument("--protocol")
+        .required(false)
+        .choices("naf", "framed", "http")
+        .setDefault("naf")
+        .help("Choose the protocol: one NAF document per connection (naf), many length-prefixed documents per connection (framed) "
+            + "or HTTP with NAF or JSON requests (http); it defaults to naf.\n");
+    serverParser.addArgument("--reactors")
+        .required(false)
+        .setDefault("0")
+        .help("Serve the naf and framed protocols with this number of non-blocking reactor threads, which receive "
+            + "the documents without holding the workers, for many idle or slow connections; it defaults to 0 "
+            + "(every connection is read by a worker).\n");
+    serverParser.addArgument("--idleTimeout")
+        .required(false)
+        .setDefault("60000")
+        .help("Maximum time in milliseconds a framed connection read by a worker may wait for its next request "
+            + "before it is closed, so that idle clients do not hold the workers; 0 for no limit; "
+            + "it defaults to 60000.\n");
+    serverParser.addArgument("--warmup")
+        .required(false)
+        .setDefault("0")
+        .help("Before listening, annotate the warm-up corpus this number of times with every stage, so that the first "
+            + "requests are not slowed down by the JIT compilation; it defaults to 0 (no warm-up).\n");
+    serverParser.addArgument("--warmupCorpus")
+        .required(false)
+        .help("NAF documents for the warm-up, each one ending with a </NAF> or " + BatchAnnotator.END_OF_DOCUMENT
+            + " line; it defaults to a generated corpus of 40 documents.\n");
+    serverParser.addArgument("--readyFile")
+        .required(false)
+        .help("Create this file once the server is warmed up and listening, and delete it on exit.\n");
+    serverParser.addArgument("--reloadModels")
+        .required(false)
+        .setDefault("0")
+        .help("Check the model files for changes every given number of seconds and load the new versions without stopping the server; it defaults to 0 (never).\n");
+    serverParser.addArgument("--metricsPort")
+        .required(false)
+        .setDefault("0")
+        .help("Serve the metrics and the readiness in the /metrics and /ready paths of this HTTP port, from before the models "
+            + "are loaded; with the http protocol the server also serves them itself once it listens. "
+            + "The metrics are also available through JMX; it defaults to 0 (no port).\n");
+    serverParser.addArgument("-s", "--stages")
+        .required(false)
+        .setDefault("absa")
+        .help("Comma separated list of the stages run when a request does not choose them, among "
+            + String.join(", ", AnnotatePipeline.STAGES) + "; every stage whose models are given is available "
+            + "to the requests; it defaults to absa.\n");
     serverParser.addArgument("-t", "--targetModel")
-        .required(true)
-        .help("Pass the Opinion Target model.\n");
+        .required(false)
+        .help("Pass the Opinion Target model, required by the ote and absa stages.\n");
+    serverParser.addArgument("-a", "--aspectModel")
+        .required(false)
+        .help("Pass the aspect model, required by the aspect stage.\n");
+    serverParser.addArgument("--aspectTagger")
+        .required(false)
+        .choices("doc", "seq")
+        .setDefault("seq")
+        .help("Choose the type of the aspect model: sequence labeler or document classifier; it defaults to seq.\n");
+    serverParser.addArgument("--seqAspectModel")
+        .required(false)
+        .help("Pass the sequence labeler aspect model, required by the aspect-seq stage.\n");
+    serverParser.addArgument("--docAspectModel")
+        .required(false)
+        .help("Pass the document classifier aspect model, required by the aspect-doc stage.\n");
     serverParser.addArgument("-p", "--polarityModel")
-        .required(true)
-        .help("Pass the polarity classification model.\n");
+        .required(false)
+        .help("Pass the polarity classification model, required by the pol and absa stages.\n");
     serverParser.addArgument("--clearFeatures")
         .required(false)
         .choices("yes", "no", "docstart")
@@ -632,13 +1229,22 @@ private Subparser polarityParser;
         .help("Choose language.\n");
     serverParser.addArgument("-o","--outputFormat")
         .required(false)
-        .choices("tabulated", "naf")
+        .choices("naf", "tabulated", "jsonl")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
-        .help("Choose output format; it defaults to NAF.\n");
+        .help("Choose output format of the naf and framed protocols: NAF, or only the opinions tabulated or as JSON Lines; "
+            + "it defaults to NAF.\n");
+    serverParser.addArgument("--passThrough")
+        .action(Arguments.storeTrue())
+        .help("Parse only the header, text, term and opinion layers and copy every other layer of the NAF documents "
+            + "through unchanged.\n");
+    serverParser.addArgument("--incremental")
+        .action(Arguments.storeTrue())
+        .help("Re-annotate NAF documents incrementally: if their opinions were produced by the same stages, version and commit, "
+            + "annotate only the sentences without opinions; otherwise replace the stale opinions.\n");
     serverParser.addArgument("-d","--dictionary")
         .required(false)
         .setDefault(Flags.DEFAULT_DICT_OPTION)
-        .help("Provide polarity lexicon to tag polarity at token/lemma level.\n");
+        .help("Provide polarity lexicon, text or compiled, to tag polarity at token/lemma level in the pol stage.\n");
   }
   
   private void loadClientParameters() {
@@ -650,6 +1256,42 @@ private Subparser polarityParser;
         .required(false)
         .setDefault(Flags.DEFAULT_HOSTNAME)
         .help("Hostname or IP where the TCP server is running.\n");
+    clientParser.addArgument("--protocol")
+        .required(false)
+        .choices("naf", "framed")
+        .setDefault("naf")
+        .help("Choose the protocol of the server; with framed, the NAF documents are pipelined over persistent connections.\n");
+    clientParser.addArgument("--connections")
+        .required(false)
+        .type(Integer.class)
+        .setDefault(1)
+        .help("Number of connections the documents are sent through with the framed protocol; it defaults to 1.\n");
+    clientParser.addArgument("--depth")
+        .required(false)
+        .type(Integer.class)
+        .setDefault(16)
+        .help("Maximum number of documents sent and not yet answered on every connection; it defaults to 16.\n");
+    clientParser.addArgument("--fileList")
+        .required(false)
+        .help("Send the NAF files listed in this file, one path per line, instead of the standard input.\n");
+    clientParser.addArgument("--inputDir")
+        .required(false)
+        .help("Send every NAF file in this directory instead of the standard input.\n");
+    clientParser.addArgument("--outputDir")
+        .required(false)
+        .help("Write the response to every file to this directory instead of the standard output.\n");
+    clientParser.addArgument("-s", "--stages")
+        .required(false)
+        .help("Comma separated list of the stages to run, such as ote,pol; it defaults to the stages of the server.\n");
+  }
+
+  private Properties setServerProperties(String port, String threads, String queueSize, String protocol) {
+    Properties serverProperties = new Properties();
+    serverProperties.setProperty("port", port);
+    serverProperties.setProperty("threads", threads);
+    serverProperties.setProperty("queueSize", queueSize);
+    serverProperties.setProperty("protocol", protocol);
+    return serverProperties;
   }
 
   private Properties setOteProperties(String model, String language, String clearFeatures) {
@@ -670,6 +1312,18 @@ private Subparser polarityParser;
     return aspectProperties;
   }
   
+  private Properties setPipelineProperties(String language) {
+    Properties pipelineProperties = new Properties();
+    for (String option : new String[] { "targetModel", "aspectModel", "aspectTagger",
+        "seqAspectModel", "docAspectModel", "polarityModel", "dictionary", "clearFeatures" }) {
+      if (parsedArguments.getString(option) != null) {
+        pipelineProperties.setProperty(option, parsedArguments.getString(option));
+      }
+    }
+    pipelineProperties.setProperty("language", language);
+    return pipelineProperties;
+  }
+
   private Properties setPolarityProperties(String model, String dictionary, String language, String clearFeatures) {
     Properties polarityProperties = new Properties();
     polarityProperties.setProperty("model", model);
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The processing deadline of the request being served by the current thread.
+ * The annotators check it before every sentence, so that a request which
+ * takes too long stops at a sentence boundary instead of holding its worker.
+ * Threads without a deadline, such as those of the batch mode, are never
+ * stopped.
+ *
+ * @author ragerri
+ * @version 2018-05-15
+ *
+ */
+public final class Deadline {
+
+  /**
+   * The deadline of the current thread, if any.
+   */
+  private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+  private final long millis;
+  private final long expiry;
+
+  private Deadline(long millis) {
+    this.millis = millis;
+    this.expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Thrown by an annotator when the deadline of its request has expired.
+   */
+  public static class ExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private ExceededException(long millis, int sentence, int numSentences) {
+      super("Deadline of " + millis + " ms exceeded after annotating " + sentence
+          + " of " + numSentences + " sentences");
+    }
+
+    private ExceededException(long millis) {
+      super("Deadline of " + millis + " ms exceeded while reading the document");
+    }
+  }
+
+  /**
+   * Start the deadline of the request of the current thread.
+   * @param millis the time allowed, in milliseconds; 0 for no deadline
+   */
+  public static void start(final long millis) {
+    if (millis > 0) {
+      current.set(new Deadline(millis));
+    } else {
+      current.remove();
+    }
+  }
+
+  /**
+   * Get the deadline of the current thread, so that the parts of its
+   * request run by other threads have the same one.
+   * @return the deadline, null if the thread has no deadline
+   */
+  static Deadline get() {
+    return current.get();
+  }
+
+  /**
+   * Set the deadline of the current thread to that of a request started by
+   * another thread.
+   * @param deadline the deadline, null for no deadline
+   */
+  static void set(final Deadline deadline) {
+    if (deadline != null) {
+      current.set(deadline);
+    } else {
+      current.remove();
+    }
+  }
+
+  /**
+   * Remove the deadline of the current thread once its request is finished.
+   */
+  public static void clear() {
+    current.remove();
+  }
+
+  /**
+   * Get the time left to the deadline of the current thread, to bound the
+   * waits of an annotator.
+   * @return the nanoseconds left, negative if expired, or
+   *         {@link Long#MAX_VALUE} if the thread has no deadline
+   */
+  public static long remainingNanos() {
+    Deadline deadline = current.get();
+    return deadline == null ? Long.MAX_VALUE : deadline.expiry - System.nanoTime();
+  }
+
+  /**
+   * Check the deadline while the document of the request is received.
+   * @throws ExceededException if the deadline has expired
+   */
+  public static void checkReading() {
+    Deadline deadline = current.get();
+    if (deadline != null && System.nanoTime() - deadline.expiry > 0) {
+      throw new ExceededException(deadline.millis);
+    }
+  }
+
+  /**
+   * Check the deadline before annotating a sentence.
+   * @param sentence the index of the sentence, from 0
+   * @param numSentences the number of sentences of the document
+   * @throws ExceededException if the deadline has expired
+   */
+  public static void check(final int sentence, final int numSentences) {
+    Deadline deadline = current.get();
+    if (deadline != null && System.nanoTime() - deadline.expiry > 0) {
+      throw new ExceededException(deadline.millis, sentence, numSentences);
+    }
+  }
+
+}
@@ -17,16 +17,13 @@
 package eus.ixa.ixa.pipe.opinion;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
-import eus.ixa.ixa.pipe.ml.StatisticalDocumentClassifier;
 import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Opinion;
 import ixa.kaflib.Opinion.OpinionExpression;
 import ixa.kaflib.Term;
-import ixa.kaflib.WF;
 
 /**
  * Annotation class for Aspect extraction using document classification.
@@ -40,7 +37,7 @@ public class DocAnnotateAspects implements Annotate {
   /**
    * The Document classifier to extract the aspects.
    */
-  private StatisticalDocumentClassifier aspectExtractor;
+  private ModelRegistry.Classifier aspectExtractor;
   /**
    * Clear features after every sentence or when a -DOCSTART- mark appears.
    */
@@ -50,7 +47,7 @@ public class DocAnnotateAspects implements Annotate {
   public DocAnnotateAspects(final Properties properties) throws IOException {
 
     this.clearFeatures = properties.getProperty("clearFeatures");
-    aspectExtractor = new StatisticalDocumentClassifier(properties);
+    aspectExtractor = ModelRegistry.newClassifier(properties);
   }
   
   /**
@@ -59,21 +56,19 @@ public class DocAnnotateAspects implements Annotate {
    */
   public final void annotate(final KAFDocument kaf) {
 
-    List<List<WF>> sentences = kaf.getSentences();
-    for (List<WF> sentence : sentences) {
+    TermIndex termIndex = TermIndex.of(kaf);
+    for (int sent = 0; sent < termIndex.getNumSentences(); sent++) {
+      Deadline.check(sent, termIndex.getNumSentences());
       //process each sentence
-      String[] tokens = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-      }
+      String[] tokens = termIndex.getTokens(sent);
       if (clearFeatures.equalsIgnoreCase("docstart") && tokens[0].startsWith("-DOCSTART-")) {
         aspectExtractor.clearFeatureData();
       }
+      if (termIndex.isUpToDate(sent)) {
+        continue;
+      }
       String aspect = aspectExtractor.classify(tokens);
-      List<Term> aspectTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, 0, tokens.length)));
+      List<Term> aspectTerms = termIndex.getTerms(sent);
       ixa.kaflib.Span<Term> aspectSpan = KAFDocument.newTermSpan(aspectTerms);
       Opinion opinion = kaf.newOpinion();
       //TODO expression span, perhaps heuristic around ote?
@@ -96,9 +91,17 @@ public class DocAnnotateAspects implements Annotate {
   public final String annotateToNAF(KAFDocument kaf) {
     return kaf.toString();
   }
+
   
+  /**
+   * Output the opinions tabulated, without the rest of the NAF document.
+   * 
+   * @param kaf
+   *          the naf document
+   * @return the string containing one opinion per line
+   */
   public final String annotateAspectsToTabulated(KAFDocument kaf) {
-    return kaf.toString();
+    return new OpinionWriter(OpinionWriter.TABULATED).toString(kaf);
   }
 
 }
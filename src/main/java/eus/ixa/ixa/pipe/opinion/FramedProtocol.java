@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Length-prefixed framing to send many NAF documents over one TCP connection.
+ * A request frame is the request id, the length of the document in bytes and
+ * the UTF-8 encoded document. A response frame is the request id, a status
+ * code, the length of the payload and the payload. Clients may send several
+ * requests before reading the responses; the server answers them in order.
+ *
+ * @author ragerri
+ * @version 2018-05-02
+ *
+ */
+public final class FramedProtocol {
+
+  /**
+   * The document was annotated and the payload contains the result.
+   */
+  public static final int OK = 0;
+  /**
+   * The document could not be annotated and the payload contains the error
+   * message.
+   */
+  public static final int ERROR = 1;
+  /**
+   * Every worker of the server is busy and its queue is full. The response
+   * has the request id {@link #NO_REQUEST} and the connection is closed.
+   */
+  public static final int BUSY = 2;
+  /**
+   * The request id of responses not answering a request.
+   */
+  public static final int NO_REQUEST = -1;
+
+  private FramedProtocol() {
+  }
+
+  /**
+   * Write a request frame.
+   * @param out the stream to the server
+   * @param requestId the request id
+   * @param document the UTF-8 encoded NAF document
+   * @throws IOException if io error
+   */
+  public static void writeRequest(DataOutputStream out, int requestId,
+      byte[] document) throws IOException {
+    out.writeInt(requestId);
+    out.writeInt(document.length);
+    out.write(document);
+  }
+
+  /**
+   * Write a response frame.
+   * @param out the stream to the client
+   * @param requestId the id of the request being answered
+   * @param status the status code, {@link #OK}, {@link #ERROR} or {@link #BUSY}
+   * @param payload the UTF-8 encoded annotated document or error message
+   * @throws IOException if io error
+   */
+  public static void writeResponse(DataOutputStream out, int requestId,
+      int status, byte[] payload) throws IOException {
+    out.writeInt(requestId);
+    out.writeInt(status);
+    out.writeInt(payload.length);
+    out.write(payload);
+  }
+
+  /**
+   * Write a response frame whose payload is in a buffer, without copying it.
+   * @param out the stream to the client
+   * @param requestId the id of the request being answered
+   * @param status the status code, {@link #OK} or {@link #ERROR}
+   * @param payload the buffer with the UTF-8 encoded payload
+   * @throws IOException if io error
+   */
+  public static void writeResponse(DataOutputStream out, int requestId,
+      int status, ByteArrayOutputStream payload) throws IOException {
+    out.writeInt(requestId);
+    out.writeInt(status);
+    out.writeInt(payload.size());
+    payload.writeTo(out);
+  }
+
+  /**
+   * Read the length of the document of a request frame whose id has already
+   * been read.
+   * @param in the stream from the client
+   * @return the length of the document in bytes
+   * @throws IOException if io error or if the length is not valid
+   */
+  public static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    return length;
+  }
+
+  /**
+   * Get a view of the next {@code length} bytes of the connection, so that the
+   * document can be parsed straight from the socket. Closing the view skips
+   * whatever was not read and leaves the connection open.
+   * @param in the stream from the client
+   * @param length the length of the document
+   * @return the stream containing the document
+   */
+  public static InputStream documentStream(InputStream in, int length) {
+    return new FrameInputStream(in, length);
+  }
+
+  /**
+   * Input stream bounded to the bytes of one frame.
+   */
+  private static class FrameInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    FrameInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      while (remaining > 0) {
+        if (read() < 0) {
+          break;
+        }
+        skip(remaining);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Opinion;
+import ixa.kaflib.Term;
+
+/**
+ * Incremental re-annotation of documents which already have an opinion
+ * layer. The opinions of a document are up to date if every linguistic
+ * processor of its opinion layer has the name and version (model, version
+ * and commit) of the current run; then the sentences with opinions are
+ * marked in the {@link TermIndex} and skipped by the annotators, so that only
+ * new sentences, which have no opinions, are annotated. Otherwise the
+ * opinions are stale, and the whole layer is replaced.
+ *
+ * A sentence edited since the last run is annotated again if its opinions
+ * no longer match it: their terms are now in several sentences, or an
+ * expression spanning the whole sentence, as those of the absa, polarity
+ * and document aspect annotators do, no longer spans exactly its terms. Its
+ * opinions are then removed. NAF records no per sentence provenance, so
+ * edits which keep the terms of every opinion, such as a word replaced by
+ * another with the same term id, are not detected, and a sentence which had
+ * no opinions is annotated again on every run.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
+public final class Incremental {
+
+  /**
+   * The layer of the opinions in the NAF header.
+   */
+  public static final String LAYER = "opinions";
+
+  private Incremental() {
+  }
+
+  /**
+   * Add the linguistic processor of a run to the opinion layer of a document.
+   * In incremental mode, the up to date sentences are marked first and
+   * stale opinions are removed, and the linguistic processor replaces those
+   * of earlier runs.
+   * @param kaf the document, before it is annotated
+   * @param name the name of the processor
+   * @param version the version of the processor
+   * @param incremental whether to re-annotate incrementally
+   * @return the new linguistic processor
+   */
+  public static KAFDocument.LinguisticProcessor addLinguisticProcessor(final KAFDocument kaf,
+      final String name, final String version, final boolean incremental) {
+    if (incremental) {
+      List<KAFDocument.LinguisticProcessor> lps = kaf.getLinguisticProcessors().get(LAYER);
+      if (isUpToDate(lps, name, version)) {
+        markUpToDate(kaf);
+      } else if (!kaf.getOpinions().isEmpty()) {
+        kaf.removeLayer(KAFDocument.Layer.OPINIONS);
+      }
+      if (lps != null) {
+        lps.clear();
+      }
+    }
+    return kaf.addLinguisticProcessor(LAYER, name, version);
+  }
+
+  /**
+   * Whether the opinions were produced by the given processor only.
+   * @param lps the linguistic processors of the opinion layer, if any
+   * @param name the name of the processor
+   * @param version the version of the processor
+   * @return true if there is at least one and all of them match
+   */
+  private static boolean isUpToDate(final List<KAFDocument.LinguisticProcessor> lps,
+      final String name, final String version) {
+    if (lps == null || lps.isEmpty()) {
+      return false;
+    }
+    for (KAFDocument.LinguisticProcessor lp : lps) {
+      if (!name.equals(lp.getName()) || !version.equals(lp.getVersion())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Mark the sentences which have opinions as up to date, removing first the
+   * opinions of the sentences edited since they were annotated.
+   * @param kaf the document
+   */
+  private static void markUpToDate(final KAFDocument kaf) {
+    TermIndex termIndex = TermIndex.of(kaf);
+    List<Opinion> opinions = kaf.getOpinions();
+    List<Set<Integer>> opinionSentences = new ArrayList<>(opinions.size());
+    Set<Integer> edited = new HashSet<>();
+    for (Opinion opinion : opinions) {
+      Set<Integer> sentences = getSentences(termIndex, opinion);
+      opinionSentences.add(sentences);
+      if (!matchesSentence(termIndex, opinion, sentences)) {
+        edited.addAll(sentences);
+      }
+    }
+    if (!edited.isEmpty()) {
+      removeOpinions(kaf, opinions, opinionSentences, edited);
+    }
+    for (Set<Integer> sentences : opinionSentences) {
+      for (int sent : sentences) {
+        if (!edited.contains(sent)) {
+          termIndex.markUpToDate(sent);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the sentences of the terms of an opinion.
+   * @param termIndex the term index of the document
+   * @param opinion the opinion
+   * @return the indexes of the sentences
+   */
+  private static Set<Integer> getSentences(final TermIndex termIndex, final Opinion opinion) {
+    Set<Integer> sentences = new HashSet<>();
+    for (Term term : getTerms(opinion)) {
+      int sent = termIndex.getSentence(term);
+      if (sent >= 0) {
+        sentences.add(sent);
+      }
+    }
+    return sentences;
+  }
+
+  private static List<Term> getTerms(final Opinion opinion) {
+    List<Term> terms = new ArrayList<>();
+    if (opinion.hasOpinionHolder()) {
+      terms.addAll(opinion.getOpinionHolder().getTerms());
+    }
+    if (opinion.hasOpinionTarget()) {
+      terms.addAll(opinion.getOpinionTarget().getTerms());
+    }
+    if (opinion.hasOpinionExpression()) {
+      terms.addAll(opinion.getOpinionExpression().getTerms());
+    }
+    return terms;
+  }
+
+  /**
+   * Whether an opinion still matches its sentence: all its terms are in one
+   * sentence and, if its expression is not just its target, the expression
+   * spans exactly the terms of the sentence.
+   * @param termIndex the term index of the document
+   * @param opinion the opinion
+   * @param sentences the sentences of its terms
+   * @return true if the opinion matches its sentence
+   */
+  private static boolean matchesSentence(final TermIndex termIndex, final Opinion opinion,
+      final Set<Integer> sentences) {
+    if (sentences.size() != 1) {
+      return false;
+    }
+    if (!opinion.hasOpinionExpression()) {
+      return true;
+    }
+    List<Term> expression = opinion.getOpinionExpression().getTerms();
+    if (opinion.hasOpinionTarget() && expression.equals(opinion.getOpinionTarget().getTerms())) {
+      return true;
+    }
+    List<Term> sentenceTerms = new ArrayList<>();
+    for (Term term : termIndex.getTerms(sentences.iterator().next())) {
+      // a multiword term appears once for each of its tokens
+      if (sentenceTerms.isEmpty() || sentenceTerms.get(sentenceTerms.size() - 1) != term) {
+        sentenceTerms.add(term);
+      }
+    }
+    return expression.equals(sentenceTerms);
+  }
+
+  /**
+   * Remove the opinions of the edited sentences, keeping the others with
+   * their ids.
+   * @param kaf the document
+   * @param opinions the opinions of the document
+   * @param opinionSentences the sentences of each opinion
+   * @param edited the edited sentences
+   */
+  private static void removeOpinions(final KAFDocument kaf, final List<Opinion> opinions,
+      final List<Set<Integer>> opinionSentences, final Set<Integer> edited) {
+    List<Opinion> kept = new ArrayList<>();
+    for (int i = 0; i < opinions.size(); i++) {
+      if (!containsAny(edited, opinionSentences.get(i))) {
+        kept.add(opinions.get(i));
+      }
+    }
+    kaf.removeLayer(KAFDocument.Layer.OPINIONS);
+    Map<String, Term> terms = new HashMap<>();
+    for (Term term : kaf.getTerms()) {
+      terms.put(term.getId(), term);
+    }
+    for (Opinion opinion : kept) {
+      ParallelAnnotator.copyOpinion(opinion, kaf.newOpinion(opinion.getId()), terms);
+    }
+  }
+
+  private static boolean containsAny(final Set<Integer> set, final Set<Integer> elements) {
+    for (int element : elements) {
+      if (set.contains(element)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
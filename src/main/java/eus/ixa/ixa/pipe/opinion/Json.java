@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the opinion output and the HTTP requests. Values
+ * are read into maps, lists, strings, doubles, booleans and null.
+ *
+ * @author ragerri
+ * @version 2018-05-13
+ *
+ */
+final class Json {
+
+  /**
+   * The deepest nesting of arrays and objects accepted, so that a malicious
+   * input cannot overflow the stack of the recursive parser.
+   */
+  static final int MAX_DEPTH = 512;
+
+  private final Reader reader;
+  private int next;
+  private int depth;
+
+  private Json(Reader reader) throws IOException {
+    this.reader = reader;
+    this.next = reader.read();
+  }
+
+  /**
+   * Read a JSON value.
+   * @param reader the input
+   * @return the value
+   * @throws IOException if io problems or if the input is not valid JSON
+   */
+  static Object parse(final Reader reader) throws IOException {
+    Json json = new Json(reader);
+    Object value = json.readValue();
+    json.skipWhitespace();
+    if (json.next != -1) {
+      throw json.error("end of input");
+    }
+    return value;
+  }
+
+  /**
+   * Append a string value, quoted and escaped.
+   * @param builder the output
+   * @param value the string, it can be null
+   */
+  static void appendString(final StringBuilder builder, final String value) {
+    if (value == null) {
+      builder.append("null");
+      return;
+    }
+    builder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        builder.append("\\\"");
+        break;
+      case '\\':
+        builder.append("\\\\");
+        break;
+      case '\n':
+        builder.append("\\n");
+        break;
+      case '\r':
+        builder.append("\\r");
+        break;
+      case '\t':
+        builder.append("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          builder.append(String.format("\\u%04x", (int) c));
+        } else {
+          builder.append(c);
+        }
+      }
+    }
+    builder.append('"');
+  }
+
+  private Object readValue() throws IOException {
+    skipWhitespace();
+    switch (next) {
+    case '{':
+    case '[':
+      if (++depth > MAX_DEPTH) {
+        throw new IOException("Invalid JSON: nesting deeper than " + MAX_DEPTH + " levels");
+      }
+      Object value = next == '{' ? readObject() : readArray();
+      depth--;
+      return value;
+    case '"':
+      return readString();
+    case 't':
+      readWord("true");
+      return Boolean.TRUE;
+    case 'f':
+      readWord("false");
+      return Boolean.FALSE;
+    case 'n':
+      readWord("null");
+      return null;
+    default:
+      if (next == '-' || (next >= '0' && next <= '9')) {
+        return readNumber();
+      }
+      throw error("a value");
+    }
+  }
+
+  private Map<String, Object> readObject() throws IOException {
+    Map<String, Object> object = new LinkedHashMap<>();
+    advance();
+    skipWhitespace();
+    if (next == '}') {
+      advance();
+      return object;
+    }
+    while (true) {
+      skipWhitespace();
+      if (next != '"') {
+        throw error("a member name");
+      }
+      String name = readString();
+      skipWhitespace();
+      expect(':');
+      object.put(name, readValue());
+      skipWhitespace();
+      if (next == ',') {
+        advance();
+      } else {
+        expect('}');
+        return object;
+      }
+    }
+  }
+
+  private List<Object> readArray() throws IOException {
+    List<Object> array = new ArrayList<>();
+    advance();
+    skipWhitespace();
+    if (next == ']') {
+      advance();
+      return array;
+    }
+    while (true) {
+      array.add(readValue());
+      skipWhitespace();
+      if (next == ',') {
+        advance();
+      } else {
+        expect(']');
+        return array;
+      }
+    }
+  }
+
+  private String readString() throws IOException {
+    StringBuilder string = new StringBuilder();
+    advance();
+    while (next != '"') {
+      if (next == -1) {
+        throw error("the end of the string");
+      }
+      if (next == '\\') {
+        advance();
+        switch (next) {
+        case 'b':
+          string.append('\b');
+          break;
+        case 'f':
+          string.append('\f');
+          break;
+        case 'n':
+          string.append('\n');
+          break;
+        case 'r':
+          string.append('\r');
+          break;
+        case 't':
+          string.append('\t');
+          break;
+        case 'u':
+          char[] hex = new char[4];
+          for (int i = 0; i < 4; i++) {
+            advance();
+            hex[i] = (char) next;
+          }
+          try {
+            string.append((char) Integer.parseInt(new String(hex), 16));
+          } catch (NumberFormatException e) {
+            throw error("a unicode escape");
+          }
+          break;
+        default:
+          string.append((char) next);
+        }
+      } else {
+        string.append((char) next);
+      }
+      advance();
+    }
+    advance();
+    return string.toString();
+  }
+
+  private Double readNumber() throws IOException {
+    StringBuilder number = new StringBuilder();
+    while (next == '-' || next == '+' || next == '.' || next == 'e' || next == 'E'
+        || (next >= '0' && next <= '9')) {
+      number.append((char) next);
+      advance();
+    }
+    try {
+      return Double.valueOf(number.toString());
+    } catch (NumberFormatException e) {
+      throw error("a number");
+    }
+  }
+
+  private void readWord(String word) throws IOException {
+    for (int i = 0; i < word.length(); i++) {
+      expect(word.charAt(i));
+    }
+  }
+
+  private void expect(char c) throws IOException {
+    if (next != c) {
+      throw error("'" + c + "'");
+    }
+    advance();
+  }
+
+  private void skipWhitespace() throws IOException {
+    while (next == ' ' || next == '\t' || next == '\n' || next == '\r') {
+      advance();
+    }
+  }
+
+  private void advance() throws IOException {
+    next = reader.read();
+  }
+
+  private IOException error(String expected) {
+    return new IOException("Invalid JSON: expected " + expected);
+  }
+
+}
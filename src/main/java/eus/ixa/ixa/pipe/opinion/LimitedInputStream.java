@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream failing once more than a maximum number of bytes are read,
+ * so that the servers never buffer a document larger than their limit.
+ *
+ * @author ragerri
+ * @version 2018-05-15
+ *
+ */
+final class LimitedInputStream extends FilterInputStream {
+
+  private final long maxBytes;
+  private long read;
+
+  /**
+   * Thrown when the document is larger than the limit.
+   */
+  static final class TooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    TooLargeException(long maxBytes) {
+      super("Document larger than " + maxBytes + " bytes");
+    }
+  }
+
+  /**
+   * Construct a limited stream.
+   * @param in the stream
+   * @param maxBytes the maximum number of bytes, 0 or less for no limit
+   */
+  LimitedInputStream(InputStream in, long maxBytes) {
+    super(in);
+    this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b >= 0) {
+      count(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = in.read(b, off, len);
+    if (n > 0) {
+      count(n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = in.skip(n);
+    count(skipped);
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void count(long n) throws TooLargeException {
+    read += n;
+    if (read > maxBytes) {
+      throw new TooLargeException(maxBytes);
+    }
+  }
+
+}
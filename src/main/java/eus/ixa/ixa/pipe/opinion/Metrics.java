@@ -0,0 +1,496 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheStats;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Process-wide metrics of the servers and the batch runs: requests, errors,
+ * latency and queue depth, sentence and token throughput, document sizes
+ * the time spent in every stage of the annotation and the sentence results
+ * cache of the {@link ModelRegistry}. The counters are
+ * always updated, which costs a few nanoseconds per sentence; they are
+ * exposed as a JMX MBean, as text through an HTTP {@code /metrics}
+ * endpoint, and can be printed at the end of a batch run.
+ *
+ * @author ragerri
+ * @version 2018-05-14
+ *
+ */
+public final class Metrics implements MetricsMBean {
+
+  /**
+   * The stages of the annotation which are timed.
+   */
+  public enum Stage {
+    PARSE("parse"), SEQUENCE_LABELING("sequenceLabeling"), CLASSIFICATION(
+        "classification"), DICTIONARY("dictionary"), SERIALIZATION("serialization");
+
+    private final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * The metrics of the process.
+   */
+  private static final Metrics METRICS = new Metrics();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  /**
+   * Requests refused because the server was busy.
+   */
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder documents = new LongAdder();
+  private final LongAdder sentences = new LongAdder();
+  private final LongAdder tokens = new LongAdder();
+  /**
+   * The latency of the requests, in microseconds.
+   */
+  private final Histogram latencies = new Histogram();
+  /**
+   * The number of tokens of the documents.
+   */
+  private final Histogram documentTokens = new Histogram();
+  private final Timer[] stages = new Timer[Stage.values().length];
+  /**
+   * The depth of the queue of the server, if any.
+   */
+  private volatile IntSupplier queueDepth = () -> 0;
+  private volatile long startTime = System.nanoTime();
+  /**
+   * The statistics of the sentence results cache when the metrics were
+   * reset, as those of the cache only grow.
+   */
+  private volatile CacheStats cacheBaseline = new CacheStats(0, 0, 0, 0, 0, 0);
+
+  private Metrics() {
+    for (int i = 0; i < stages.length; i++) {
+      stages[i] = new Timer();
+    }
+  }
+
+  /**
+   * Time spent in a stage: number of calls, total and maximum.
+   */
+  private static final class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private void add(long elapsed) {
+      count.increment();
+      nanos.add(elapsed);
+      maxNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    private void reset() {
+      count.reset();
+      nanos.reset();
+      maxNanos.set(0);
+    }
+  }
+
+  /**
+   * Distribution of non negative values in power of two buckets, so that
+   * percentiles are known within a factor of two.
+   */
+  private static final class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    private void add(long value) {
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(value, 0)));
+      count.increment();
+      sum.add(value);
+    }
+
+    private double mean() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Get the upper bound of the bucket containing a percentile.
+     */
+    private long percentile(double percentile) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile * n);
+      long seen = 0;
+      for (int i = 0; i < 64; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return i == 0 ? 0 : (1L << i) - 1;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    private void reset() {
+      for (int i = 0; i < 64; i++) {
+        buckets.set(i, 0);
+      }
+      count.reset();
+      sum.reset();
+    }
+  }
+
+  /**
+   * Get the metrics of the process.
+   * @return the metrics
+   */
+  public static Metrics get() {
+    return METRICS;
+  }
+
+  /**
+   * Record the time spent in a stage.
+   * @param stage the stage
+   * @param startNanos the {@link System#nanoTime()} when the stage started
+   */
+  public static void time(final Stage stage, final long startNanos) {
+    METRICS.stages[stage.ordinal()].add(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Record a served request.
+   * @param startNanos the {@link System#nanoTime()} when the request started
+   * @param failed whether the request could not be annotated
+   */
+  public static void request(final long startNanos, final boolean failed) {
+    METRICS.requests.increment();
+    if (failed) {
+      METRICS.errors.increment();
+    }
+    METRICS.latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Record a request refused because every worker was busy and the queue of
+   * the server was full.
+   */
+  public static void rejected() {
+    METRICS.rejected.increment();
+  }
+
+  /**
+   * Record the size of an annotated document.
+   * @param kaf the document
+   */
+  public static void document(final KAFDocument kaf) {
+    TermIndex termIndex = TermIndex.of(kaf);
+    long numTokens = 0;
+    for (int sent = 0; sent < termIndex.getNumSentences(); sent++) {
+      numTokens += termIndex.getTokens(sent).length;
+    }
+    METRICS.documents.increment();
+    METRICS.sentences.add(termIndex.getNumSentences());
+    METRICS.tokens.add(numTokens);
+    METRICS.documentTokens.add(numTokens);
+  }
+
+  /**
+   * Report the depth of the queue of a server.
+   * @param depth the current number of waiting requests
+   */
+  public static void setQueueDepth(final IntSupplier depth) {
+    METRICS.queueDepth = depth;
+  }
+
+  /**
+   * Register the metrics in the platform MBean server, if not already.
+   */
+  public static void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(METRICS,
+          new ObjectName("eus.ixa.ixa.pipe.opinion:type=Metrics"));
+    } catch (InstanceAlreadyExistsException e) {
+      // already registered
+    } catch (JMException e) {
+      System.err.println("-> Could not register the metrics MBean: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Start an HTTP server answering the metrics as text in {@code /metrics}.
+   * @param port the port
+   * @throws IOException if the port cannot be used
+   */
+  public static void serve(final int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    addEndpoint(server);
+    server.start();
+    System.out.println("-> Metrics available at port " + port + ", endpoints /metrics and /ready");
+  }
+
+  /**
+   * Answer the metrics as text in the {@code /metrics} path of a server and
+   * the {@link Readiness} in its {@code /ready} path.
+   * @param server the HTTP server
+   */
+  static void addEndpoint(final HttpServer server) {
+    server.createContext("/metrics", Metrics::serveReport);
+    Readiness.addEndpoint(server);
+  }
+
+  private static void serveReport(HttpExchange exchange) throws IOException {
+    byte[] report = METRICS.getReport().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(200, report.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(report);
+    }
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private double perSecond(long count) {
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    return seconds <= 0 ? 0 : count / seconds;
+  }
+
+  private double stageMillis(Stage stage) {
+    return toMillis(stages[stage.ordinal()].nanos.sum());
+  }
+
+  @Override
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  @Override
+  public double getErrorRate() {
+    long n = requests.sum();
+    return n == 0 ? 0 : (double) errors.sum() / n;
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return queueDepth.getAsInt();
+  }
+
+  @Override
+  public double getMeanLatencyMillis() {
+    return latencies.mean() / 1000;
+  }
+
+  @Override
+  public long getMedianLatencyMillis() {
+    return latencies.percentile(0.5) / 1000;
+  }
+
+  @Override
+  public long getP99LatencyMillis() {
+    return latencies.percentile(0.99) / 1000;
+  }
+
+  @Override
+  public long getDocuments() {
+    return documents.sum();
+  }
+
+  @Override
+  public long getSentences() {
+    return sentences.sum();
+  }
+
+  @Override
+  public long getTokens() {
+    return tokens.sum();
+  }
+
+  @Override
+  public double getSentencesPerSecond() {
+    return perSecond(sentences.sum());
+  }
+
+  @Override
+  public double getTokensPerSecond() {
+    return perSecond(tokens.sum());
+  }
+
+  @Override
+  public double getMeanDocumentTokens() {
+    return documentTokens.mean();
+  }
+
+  @Override
+  public long getMedianDocumentTokens() {
+    return documentTokens.percentile(0.5);
+  }
+
+  @Override
+  public long getP99DocumentTokens() {
+    return documentTokens.percentile(0.99);
+  }
+
+  @Override
+  public double getParseMillis() {
+    return stageMillis(Stage.PARSE);
+  }
+
+  @Override
+  public double getSequenceLabelingMillis() {
+    return stageMillis(Stage.SEQUENCE_LABELING);
+  }
+
+  @Override
+  public double getClassificationMillis() {
+    return stageMillis(Stage.CLASSIFICATION);
+  }
+
+  @Override
+  public double getDictionaryMillis() {
+    return stageMillis(Stage.DICTIONARY);
+  }
+
+  @Override
+  public double getSerializationMillis() {
+    return stageMillis(Stage.SERIALIZATION);
+  }
+
+  private CacheStats cacheStats() {
+    return ModelRegistry.getSentenceCacheStats().minus(cacheBaseline);
+  }
+
+  @Override
+  public boolean isReady() {
+    return Readiness.isReady();
+  }
+
+  @Override
+  public long getSentenceCacheHits() {
+    return cacheStats().hitCount();
+  }
+
+  @Override
+  public double getSentenceCacheHitRate() {
+    return cacheStats().hitRate();
+  }
+
+  @Override
+  public long getSentenceCacheSize() {
+    return ModelRegistry.getSentenceCacheSize();
+  }
+
+  @Override
+  public String getReport() {
+    StringBuilder report = new StringBuilder();
+    append(report, "ready", isReady() ? 1 : 0);
+    if (requests.sum() > 0 || rejected.sum() > 0) {
+      append(report, "requests", getRequests());
+      append(report, "errors", getErrors());
+      append(report, "rejected", getRejected());
+      append(report, "errorRate", getErrorRate());
+      append(report, "queueDepth", getQueueDepth());
+      append(report, "latencyMeanMillis", getMeanLatencyMillis());
+      append(report, "latencyMedianMillis", getMedianLatencyMillis());
+      append(report, "latencyP99Millis", getP99LatencyMillis());
+    }
+    append(report, "documents", getDocuments());
+    append(report, "sentences", getSentences());
+    append(report, "tokens", getTokens());
+    append(report, "sentencesPerSecond", getSentencesPerSecond());
+    append(report, "tokensPerSecond", getTokensPerSecond());
+    append(report, "documentTokensMean", getMeanDocumentTokens());
+    append(report, "documentTokensMedian", getMedianDocumentTokens());
+    append(report, "documentTokensP99", getP99DocumentTokens());
+    for (Stage stage : Stage.values()) {
+      Timer timer = stages[stage.ordinal()];
+      long count = timer.count.sum();
+      String prefix = "stage." + stage.name + ".";
+      append(report, prefix + "count", count);
+      append(report, prefix + "totalMillis", toMillis(timer.nanos.sum()));
+      append(report, prefix + "meanMillis", count == 0 ? 0 : toMillis(timer.nanos.sum()) / count);
+      append(report, prefix + "maxMillis", toMillis(timer.maxNanos.get()));
+    }
+    CacheStats cacheStats = cacheStats();
+    if (cacheStats.requestCount() > 0) {
+      append(report, "sentenceCache.hits", cacheStats.hitCount());
+      append(report, "sentenceCache.misses", cacheStats.missCount());
+      append(report, "sentenceCache.hitRate", cacheStats.hitRate());
+      append(report, "sentenceCache.evictions", cacheStats.evictionCount());
+      append(report, "sentenceCache.size", getSentenceCacheSize());
+    }
+    return report.toString();
+  }
+
+  private static void append(StringBuilder report, String name, long value) {
+    report.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void append(StringBuilder report, String name, double value) {
+    report.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+  }
+
+  @Override
+  public void reset() {
+    requests.reset();
+    errors.reset();
+    rejected.reset();
+    documents.reset();
+    sentences.reset();
+    tokens.reset();
+    latencies.reset();
+    documentTokens.reset();
+    for (Timer timer : stages) {
+      timer.reset();
+    }
+    cacheBaseline = ModelRegistry.getSentenceCacheStats();
+    startTime = System.nanoTime();
+  }
+
+}
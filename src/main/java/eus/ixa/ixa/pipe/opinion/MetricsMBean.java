@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+/**
+ * The JMX view of the {@link Metrics}, registered as
+ * {@code eus.ixa.ixa.pipe.opinion:type=Metrics}. Times are in milliseconds
+ * and rates are measured since the metrics were started or reset.
+ *
+ * @author ragerri
+ * @version 2018-05-14
+ *
+ */
+public interface MetricsMBean {
+
+  /**
+   * Whether the server has been warmed up and is listening.
+   * @return true once ready
+   */
+  boolean isReady();
+
+  long getRequests();
+
+  long getErrors();
+
+  long getRejected();
+
+  double getErrorRate();
+
+  int getQueueDepth();
+
+  double getMeanLatencyMillis();
+
+  long getMedianLatencyMillis();
+
+  long getP99LatencyMillis();
+
+  long getDocuments();
+
+  long getSentences();
+
+  long getTokens();
+
+  double getSentencesPerSecond();
+
+  double getTokensPerSecond();
+
+  double getMeanDocumentTokens();
+
+  long getMedianDocumentTokens();
+
+  long getP99DocumentTokens();
+
+  double getParseMillis();
+
+  double getSequenceLabelingMillis();
+
+  double getClassificationMillis();
+
+  double getDictionaryMillis();
+
+  double getSerializationMillis();
+
+  long getSentenceCacheHits();
+
+  double getSentenceCacheHitRate();
+
+  long getSentenceCacheSize();
+
+  /**
+   * Get every metric as text, one name and value per line.
+   * @return the report
+   */
+  String getReport();
+
+  /**
+   * Set every metric back to zero.
+   */
+  void reset();
+
+}
@@ -0,0 +1,441 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import eus.ixa.ixa.pipe.ml.document.DocumentClassifierME;
+import eus.ixa.ixa.pipe.ml.document.DocumentClassifierModel;
+import eus.ixa.ixa.pipe.ml.sequence.SequenceLabel;
+import eus.ixa.ixa.pipe.ml.sequence.SequenceLabelFactory;
+import eus.ixa.ixa.pipe.ml.sequence.SequenceLabelerME;
+import eus.ixa.ixa.pipe.ml.sequence.SequenceLabelerModel;
+import eus.ixa.ixa.pipe.ml.utils.Span;
+
+/**
+ * Process-wide registry of the sequence labeling and document classification
+ * models. Each model file is loaded once, identified by its path and the
+ * checksum of its contents, and the immutable model is shared by every
+ * annotator. The registry can watch the model files and load a new version
+ * when one changes; annotators created afterwards use the new version while
+ * the ones already running keep the model they were created with.
+ *
+ * When the adaptive features are cleared after every sentence, the result of
+ * a model for a sentence only depends on its tokens, so the registry can
+ * keep a bounded cache of the results of every model version; repeated
+ * sentences are then not run through the model at all.
+ *
+ * @author ragerri
+ * @version 2018-05-07
+ *
+ */
+public final class ModelRegistry {
+
+  /**
+   * The models loaded, by canonical path.
+   */
+  private static final ConcurrentHashMap<String, Entry<?>> models = new ConcurrentHashMap<>();
+  /**
+   * Incremented every time a model is replaced by a new version.
+   */
+  private static final AtomicLong generation = new AtomicLong();
+  /**
+   * The thread watching the model files, if any.
+   */
+  private static Thread watcher;
+  /**
+   * The maximum number of sentence results cached per model, 0 for none.
+   */
+  private static volatile int sentenceCacheSize = 0;
+  /**
+   * The sentence results of every model version, by path and checksum.
+   */
+  private static final ConcurrentHashMap<String, Cache<SentenceKey, ?>> results = new ConcurrentHashMap<>();
+
+  private ModelRegistry() {
+  }
+
+  /**
+   * A loaded model and the state of the file it was loaded from.
+   */
+  private static final class Entry<T> {
+    private final T model;
+    private final long checksum;
+    private final long lastModified;
+    private final long length;
+
+    private Entry(T model, long checksum, long lastModified, long length) {
+      this.model = model;
+      this.checksum = checksum;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+
+  /**
+   * The tokens of a sentence, compared by their contents.
+   */
+  private static final class SentenceKey {
+    private final String[] tokens;
+    private final int hash;
+
+    private SentenceKey(String[] tokens) {
+      this.tokens = tokens;
+      this.hash = Arrays.hashCode(tokens);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof SentenceKey && hash == ((SentenceKey) other).hash
+          && Arrays.equals(tokens, ((SentenceKey) other).tokens);
+    }
+  }
+
+  /**
+   * Loads a model from a stream.
+   */
+  private interface ModelLoader<T> {
+    T load(InputStream in) throws IOException;
+  }
+
+  /**
+   * Create a sequence labeler with the model in the model property.
+   * @param properties the properties of the annotator
+   * @return the sequence labeler
+   * @throws IOException if the model cannot be loaded
+   */
+  public static Labeler newLabeler(final Properties properties) throws IOException {
+    String key = new File(properties.getProperty("model")).getCanonicalPath();
+    Entry<SequenceLabelerModel> entry = getEntry(key, SequenceLabelerModel::new);
+    return new Labeler(entry.model, getResults(key, entry, properties));
+  }
+
+  /**
+   * Create a document classifier with the model in the model property.
+   * @param properties the properties of the annotator
+   * @return the document classifier
+   * @throws IOException if the model cannot be loaded
+   */
+  public static Classifier newClassifier(final Properties properties) throws IOException {
+    String key = new File(properties.getProperty("model")).getCanonicalPath();
+    Entry<DocumentClassifierModel> entry = getEntry(key, DocumentClassifierModel::new);
+    return new Classifier(entry.model, getResults(key, entry, properties));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Entry<T> getEntry(String key, ModelLoader<T> loader) throws IOException {
+    Entry<?> entry = models.get(key);
+    if (entry == null) {
+      synchronized (models) {
+        entry = models.get(key);
+        if (entry == null) {
+          entry = load(new File(key), loader);
+          models.put(key, entry);
+        }
+      }
+    }
+    return (Entry<T>) entry;
+  }
+
+  /**
+   * Get the sentence results cache of a model version, if the cache is
+   * enabled and the annotator clears the adaptive features after every
+   * sentence; otherwise the results depend on the previous sentences.
+   */
+  @SuppressWarnings("unchecked")
+  private static <V> Cache<SentenceKey, V> getResults(String key, Entry<?> entry,
+      Properties properties) {
+    if (sentenceCacheSize <= 0 || !"yes".equalsIgnoreCase(properties.getProperty("clearFeatures"))) {
+      return null;
+    }
+    return (Cache<SentenceKey, V>) results.computeIfAbsent(key + ":" + entry.checksum,
+        k -> CacheBuilder.newBuilder().maximumSize(sentenceCacheSize).recordStats().build());
+  }
+
+  /**
+   * Set the maximum number of sentence results cached for each model, used
+   * by the labelers and classifiers created afterwards.
+   * @param size the number of sentences, 0 to disable the cache
+   */
+  public static void setSentenceCacheSize(final int size) {
+    sentenceCacheSize = size;
+  }
+
+  /**
+   * Get the statistics of the sentence results caches of every model.
+   * @return the hits, misses and evictions
+   */
+  public static CacheStats getSentenceCacheStats() {
+    CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+    for (Cache<SentenceKey, ?> cache : results.values()) {
+      stats = stats.plus(cache.stats());
+    }
+    return stats;
+  }
+
+  /**
+   * Remove every cached sentence result, keeping the statistics.
+   */
+  public static void invalidateSentenceCaches() {
+    for (Cache<SentenceKey, ?> cache : results.values()) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Get the number of sentence results cached for every model.
+   * @return the number of results
+   */
+  public static long getSentenceCacheSize() {
+    long size = 0;
+    for (Cache<SentenceKey, ?> cache : results.values()) {
+      size += cache.size();
+    }
+    return size;
+  }
+
+  private static <T> Entry<T> load(File file, ModelLoader<T> loader) throws IOException {
+    long lastModified = file.lastModified();
+    long length = file.length();
+    long checksum = checksum(file);
+    T model;
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      model = loader.load(in);
+    }
+    return new Entry<>(model, checksum, lastModified, length);
+  }
+
+  private static long checksum(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[65536];
+    try (InputStream in = new FileInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Get the checksum of the version of a model currently in use.
+   * @param path the path of the model
+   * @return the checksum or -1 if the model is not loaded
+   * @throws IOException if the path cannot be resolved
+   */
+  public static long getChecksum(String path) throws IOException {
+    Entry<?> entry = models.get(new File(path).getCanonicalPath());
+    return entry == null ? -1 : entry.checksum;
+  }
+
+  /**
+   * Get the generation of the registry, which changes every time a model is
+   * replaced by a new version. Annotators created in an older generation may
+   * be using outdated models.
+   * @return the generation
+   */
+  public static long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Start watching the model files, checking them for changes every given
+   * number of seconds. A changed file is loaded again if its checksum differs;
+   * if it cannot be loaded, for example because it is still being written,
+   * the current version is kept and the file is checked again later.
+   * @param seconds the interval between checks
+   */
+  public static synchronized void watch(final long seconds) {
+    if (watcher != null) {
+      return;
+    }
+    watcher = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(seconds * 1000);
+        } catch (InterruptedException e) {
+          break;
+        }
+        reload();
+      }
+    }, "model-registry-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  /**
+   * Load again every model whose file has changed.
+   */
+  public static void reload() {
+    List<String> paths = new ArrayList<>(models.keySet());
+    for (String path : paths) {
+      Entry<?> entry = models.get(path);
+      File file = new File(path);
+      if (entry == null || !file.exists()
+          || (file.lastModified() == entry.lastModified && file.length() == entry.length)) {
+        continue;
+      }
+      try {
+        Entry<?> newEntry;
+        if (entry.model instanceof SequenceLabelerModel) {
+          newEntry = load(file, SequenceLabelerModel::new);
+        } else {
+          newEntry = load(file, DocumentClassifierModel::new);
+        }
+        if (newEntry.checksum != entry.checksum) {
+          models.put(path, newEntry);
+          results.remove(path + ":" + entry.checksum);
+          generation.incrementAndGet();
+          System.err.println("-> Loaded new version of model " + path);
+        } else {
+          // same contents, only remember the new timestamp
+          models.put(path, newEntry);
+        }
+      } catch (IOException | RuntimeException e) {
+        System.err.println("-> Could not load new version of model " + path + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Sequence labeler using a shared model. Each instance keeps its own
+   * adaptive feature data, so it must not be used by two threads at once.
+   */
+  public static final class Labeler {
+
+    private final SequenceLabelerME sequenceLabeler;
+    private final SequenceLabelFactory sequenceFactory = new SequenceLabelFactory();
+    /**
+     * The cached results of the model, null if not cached.
+     */
+    private final Cache<SentenceKey, List<SequenceLabel>> results;
+
+    private Labeler(SequenceLabelerModel model, Cache<SentenceKey, List<SequenceLabel>> results) {
+      this.sequenceLabeler = new SequenceLabelerME(model);
+      this.results = results;
+    }
+
+    /**
+     * Tag the sequences of a sentence.
+     * @param tokens the tokens of the sentence
+     * @return the sequences, without overlaps; the list must not be modified
+     */
+    public List<SequenceLabel> getSequences(final String[] tokens) {
+      if (results == null) {
+        return tag(tokens);
+      }
+      SentenceKey key = new SentenceKey(tokens);
+      List<SequenceLabel> sequences = results.getIfPresent(key);
+      if (sequences == null) {
+        sequences = Collections.unmodifiableList(tag(tokens));
+        results.put(key, sequences);
+      }
+      return sequences;
+    }
+
+    private List<SequenceLabel> tag(final String[] tokens) {
+      long start = System.nanoTime();
+      Span[] spans = SequenceLabelerME.dropOverlappingSpans(sequenceLabeler.tag(tokens));
+      List<SequenceLabel> sequences = new ArrayList<>(spans.length);
+      for (Span span : spans) {
+        sequences.add(sequenceFactory.createSequence(span.getCoveredText(tokens),
+            span.getType(), span));
+      }
+      Metrics.time(Metrics.Stage.SEQUENCE_LABELING, start);
+      return sequences;
+    }
+
+    /**
+     * Forget the adaptive data of previous sentences.
+     */
+    public void clearAdaptiveData() {
+      sequenceLabeler.clearAdaptiveData();
+    }
+  }
+
+  /**
+   * Document classifier using a shared model. Each instance keeps its own
+   * feature data, so it must not be used by two threads at once.
+   */
+  public static final class Classifier {
+
+    private final DocumentClassifierME docClassifier;
+    /**
+     * The cached results of the model, null if not cached.
+     */
+    private final Cache<SentenceKey, String> results;
+
+    private Classifier(DocumentClassifierModel model, Cache<SentenceKey, String> results) {
+      this.docClassifier = new DocumentClassifierME(model);
+      this.results = results;
+    }
+
+    /**
+     * Classify a sentence or document.
+     * @param tokens the tokens
+     * @return the best label
+     */
+    public String classify(final String[] tokens) {
+      if (results == null) {
+        return classifyTokens(tokens);
+      }
+      SentenceKey key = new SentenceKey(tokens);
+      String label = results.getIfPresent(key);
+      if (label == null) {
+        label = classifyTokens(tokens);
+        results.put(key, label);
+      }
+      return label;
+    }
+
+    private String classifyTokens(final String[] tokens) {
+      long start = System.nanoTime();
+      String label = docClassifier.getBestLabel(docClassifier.classifyProb(tokens));
+      Metrics.time(Metrics.Stage.CLASSIFICATION, start);
+      return label;
+    }
+
+    /**
+     * Forget the feature data of previous sentences.
+     */
+    public void clearFeatureData() {
+      docClassifier.clearFeatureData();
+    }
+  }
+
+}
@@ -0,0 +1,390 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.JDOMException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ixa.kaflib.KAFDocument;
+
+/**
+ * The layers of a NAF document read in pass-through mode. Only the layers
+ * used by the annotators (header, text, terms and opinions) are parsed by
+ * kaflib; the text of the document is kept, and when the document is
+ * written the header, terms and opinions are serialized again and spliced
+ * into it, while every other layer, and the text layer, which the
+ * annotators never modify, are copied through unchanged. The layers are
+ * found by a light scan of the markup, without parsing them.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
+final class NAFLayers {
+
+  /**
+   * The layers parsed by kaflib.
+   */
+  static final List<String> PARSED_LAYERS = Arrays.asList("nafHeader", "text", "terms", "opinions");
+  /**
+   * The layers written from the kaflib document; the others are copied.
+   */
+  private static final List<String> WRITTEN_LAYERS = Arrays.asList("nafHeader", "terms", "opinions");
+
+  /**
+   * The layers of the documents read in pass-through mode, compared by
+   * identity.
+   */
+  private static final Cache<KAFDocument, NAFLayers> documents = CacheBuilder
+      .newBuilder().weakKeys().build();
+
+  /**
+   * The markup of a document: the end of the root start tag, the start of
+   * the root end tag and the elements between them.
+   */
+  private static final class Layout {
+    private int contentStart;
+    private int contentEnd;
+    private final List<Layer> layers = new ArrayList<>();
+  }
+
+  /**
+   * A child element of the root and its position in the text.
+   */
+  private static final class Layer {
+    private final String name;
+    private final int start;
+    private final int end;
+
+    private Layer(String name, int start, int end) {
+      this.name = name;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * The text of the document.
+   */
+  private final String xml;
+  private final Layout layout;
+
+  private NAFLayers(String xml, Layout layout) {
+    this.xml = xml;
+    this.layout = layout;
+  }
+
+  /**
+   * Read a NAF document parsing only the layers used by the annotators.
+   * @param reader the NAF document
+   * @return the document
+   * @throws IOException if io problems
+   * @throws JDOMException if the document is not well formed
+   */
+  static KAFDocument read(final Reader reader) throws IOException, JDOMException {
+    long start = System.nanoTime();
+    StringBuilder text = new StringBuilder();
+    char[] buffer = new char[8192];
+    int n;
+    while ((n = reader.read(buffer)) >= 0) {
+      text.append(buffer, 0, n);
+    }
+    String xml = text.toString();
+    Layout layout = scan(xml);
+    List<int[]> parsed = new ArrayList<>();
+    parsed.add(new int[] { 0, layout.contentStart });
+    for (Layer layer : layout.layers) {
+      if (PARSED_LAYERS.contains(layer.name)) {
+        parsed.add(new int[] { layer.start, layer.end });
+      }
+    }
+    parsed.add(new int[] { layout.contentEnd, xml.length() });
+    KAFDocument kaf = KAFDocument.createFromStream(new RangesReader(xml, parsed));
+    documents.put(kaf, new NAFLayers(xml, layout));
+    Metrics.time(Metrics.Stage.PARSE, start);
+    return kaf;
+  }
+
+  /**
+   * Get the layers of a document read in pass-through mode.
+   * @param kaf the document
+   * @return its layers, null if it was fully parsed
+   */
+  static NAFLayers of(final KAFDocument kaf) {
+    return documents.getIfPresent(kaf);
+  }
+
+  /**
+   * Write the document, splicing the serialized header, terms and opinions
+   * into the original text.
+   * @param serialized the document serialized by kaflib, which has the
+   *          parsed layers only
+   * @param writer the output, which is not closed
+   * @throws IOException if io problems
+   */
+  void write(final String serialized, final Writer writer) throws IOException {
+    Layout written = scan(serialized);
+    Map<String, Layer> writtenLayers = new HashMap<>();
+    for (Layer layer : written.layers) {
+      if (WRITTEN_LAYERS.contains(layer.name)) {
+        writtenLayers.put(layer.name, layer);
+      }
+    }
+    writer.write(xml, 0, layout.contentStart);
+    Layer header = writtenLayers.get("nafHeader");
+    if (header != null && !hasLayer("nafHeader")) {
+      writer.write("\n  ");
+      writer.write(serialized, header.start, header.end - header.start);
+      writtenLayers.remove("nafHeader");
+    }
+    int position = layout.contentStart;
+    for (Layer layer : layout.layers) {
+      writer.write(xml, position, layer.start - position);
+      if (WRITTEN_LAYERS.contains(layer.name)) {
+        Layer replacement = writtenLayers.remove(layer.name);
+        if (replacement != null) {
+          writer.write(serialized, replacement.start, replacement.end - replacement.start);
+        }
+      } else {
+        writer.write(xml, layer.start, layer.end - layer.start);
+      }
+      position = layer.end;
+    }
+    // layers added by the annotation, such as the first opinions
+    for (Layer layer : written.layers) {
+      if (writtenLayers.containsKey(layer.name)) {
+        writer.write("\n  ");
+        writer.write(serialized, layer.start, layer.end - layer.start);
+      }
+    }
+    writer.write(xml, position, xml.length() - position);
+  }
+
+  private boolean hasLayer(String name) {
+    for (Layer layer : layout.layers) {
+      if (layer.name.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the root element of a document and its child elements.
+   * @param xml the document
+   * @return the layout
+   * @throws IOException if the markup is not well formed
+   */
+  private static Layout scan(String xml) throws IOException {
+    Layout layout = new Layout();
+    int i = 0;
+    // prolog: declaration, comments, processing instructions and doctype
+    while (true) {
+      i = xml.indexOf('<', i);
+      if (i < 0) {
+        throw new IOException("Badly formatted NAF document: no root element");
+      }
+      if (xml.startsWith("<?", i) || xml.startsWith("<!", i)) {
+        i = skipMarkup(xml, i);
+      } else {
+        break;
+      }
+    }
+    int rootEnd = tagEnd(xml, i);
+    if (xml.charAt(rootEnd - 2) == '/') {
+      throw new IOException("Badly formatted NAF document: empty root element");
+    }
+    layout.contentStart = rootEnd;
+    i = rootEnd;
+    while (true) {
+      i = xml.indexOf('<', i);
+      if (i < 0) {
+        throw new IOException("Badly formatted NAF document: no root end tag");
+      }
+      if (xml.startsWith("</", i)) {
+        layout.contentEnd = i;
+        return layout;
+      }
+      if (xml.startsWith("<?", i) || xml.startsWith("<!", i)) {
+        i = skipMarkup(xml, i);
+      } else {
+        int end = elementEnd(xml, i);
+        layout.layers.add(new Layer(tagName(xml, i), i, end));
+        i = end;
+      }
+    }
+  }
+
+  /**
+   * Find the end of an element.
+   * @param xml the document
+   * @param start the position of its start tag
+   * @return the position after its end tag
+   * @throws IOException if the markup is not well formed
+   */
+  private static int elementEnd(String xml, int start) throws IOException {
+    int i = tagEnd(xml, start);
+    if (xml.charAt(i - 2) == '/') {
+      return i;
+    }
+    int depth = 1;
+    while (depth > 0) {
+      i = xml.indexOf('<', i);
+      if (i < 0) {
+        throw new IOException("Badly formatted NAF document: unclosed " + tagName(xml, start));
+      }
+      if (xml.startsWith("<?", i) || xml.startsWith("<!", i)) {
+        i = skipMarkup(xml, i);
+      } else if (xml.startsWith("</", i)) {
+        depth--;
+        i = tagEnd(xml, i);
+      } else {
+        int end = tagEnd(xml, i);
+        if (xml.charAt(end - 2) != '/') {
+          depth++;
+        }
+        i = end;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Find the end of a tag, skipping quoted attribute values.
+   * @param xml the document
+   * @param start the position of the tag
+   * @return the position after the tag
+   * @throws IOException if the tag is not closed
+   */
+  private static int tagEnd(String xml, int start) throws IOException {
+    char quote = 0;
+    for (int i = start + 1; i < xml.length(); i++) {
+      char c = xml.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '>') {
+        return i + 1;
+      }
+    }
+    throw new IOException("Badly formatted NAF document: unclosed tag");
+  }
+
+  /**
+   * Skip a comment, CDATA section, processing instruction or doctype.
+   * @param xml the document
+   * @param start the position of the markup
+   * @return the position after it
+   * @throws IOException if the markup is not closed
+   */
+  private static int skipMarkup(String xml, int start) throws IOException {
+    int end;
+    if (xml.startsWith("<!--", start)) {
+      end = xml.indexOf("-->", start + 4);
+      end = end < 0 ? -1 : end + 3;
+    } else if (xml.startsWith("<![CDATA[", start)) {
+      end = xml.indexOf("]]>", start + 9);
+      end = end < 0 ? -1 : end + 3;
+    } else if (xml.startsWith("<?", start)) {
+      end = xml.indexOf("?>", start + 2);
+      end = end < 0 ? -1 : end + 2;
+    } else {
+      // doctype, with an optional internal subset
+      int subset = 0;
+      end = -1;
+      for (int i = start + 2; i < xml.length(); i++) {
+        char c = xml.charAt(i);
+        if (c == '[') {
+          subset++;
+        } else if (c == ']') {
+          subset--;
+        } else if (c == '>' && subset == 0) {
+          end = i + 1;
+          break;
+        }
+      }
+    }
+    if (end < 0) {
+      throw new IOException("Badly formatted NAF document: unclosed markup");
+    }
+    return end;
+  }
+
+  private static String tagName(String xml, int start) {
+    int i = start + 1;
+    while (i < xml.length() && !Character.isWhitespace(xml.charAt(i))
+        && xml.charAt(i) != '>' && xml.charAt(i) != '/') {
+      i++;
+    }
+    String name = xml.substring(start + 1, i);
+    int colon = name.indexOf(':');
+    return colon < 0 ? name : name.substring(colon + 1);
+  }
+
+  /**
+   * Reads ranges of a string one after the other, without copying them.
+   */
+  private static final class RangesReader extends Reader {
+
+    private final String xml;
+    private final List<int[]> ranges;
+    private int range = 0;
+    private int position;
+
+    private RangesReader(String xml, List<int[]> ranges) {
+      this.xml = xml;
+      this.ranges = ranges;
+      this.position = ranges.get(0)[0];
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      while (range < ranges.size() && position >= ranges.get(range)[1]) {
+        range++;
+        if (range < ranges.size()) {
+          position = ranges.get(range)[0];
+        }
+      }
+      if (range == ranges.size()) {
+        return -1;
+      }
+      int n = Math.min(length, ranges.get(range)[1] - position);
+      xml.getChars(position, position + n, buffer, offset);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.jdom2.output.Format;
+import org.jdom2.output.LineSeparator;
+import org.jdom2.output.XMLOutputter;
+
+import ixa.kaflib.KAFDocument;
+
+/**
+ * Serializes NAF documents straight to a writer. kaflib only offers the
+ * document as a string, so for large documents the DOM, the XML string and
+ * the copy in the output buffer are all in memory at the same time. This
+ * class builds the DOM with the kaflib conversion and lets the JDOM outputter
+ * write it to the writer, with the same format as {@link KAFDocument#toString()}.
+ * If the kaflib conversion is not accessible it falls back to the string.
+ * Documents read in pass-through mode are written by {@link NAFLayers}.
+ *
+ * @author ragerri
+ * @version 2018-05-09
+ *
+ */
+public final class NAFSerializer {
+
+  /**
+   * The kaflib conversion of a document into a DOM, null if not accessible.
+   */
+  private static final Method KAF_TO_DOM = findKafToDom();
+
+  private NAFSerializer() {
+  }
+
+  private static Method findKafToDom() {
+    try {
+      Class<?> manager = Class.forName("ixa.kaflib.ReadWriteManager");
+      Method method = manager.getDeclaredMethod("KAFToDOM", KAFDocument.class);
+      method.setAccessible(true);
+      return method;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parse a NAF document, recording the time in the {@link Metrics}.
+   * @param reader the NAF document
+   * @return the document
+   * @throws IOException if io problems
+   * @throws JDOMException if the document is not well formed
+   */
+  public static KAFDocument read(final Reader reader)
+      throws IOException, JDOMException {
+    long start = System.nanoTime();
+    KAFDocument kaf = KAFDocument.createFromStream(reader);
+    Metrics.time(Metrics.Stage.PARSE, start);
+    return kaf;
+  }
+
+  /**
+   * Parse a NAF document, recording the time in the {@link Metrics}. In
+   * pass-through mode only the layers used by the annotators are parsed,
+   * and the others are copied unchanged when the document is written.
+   * @param reader the NAF document
+   * @param passThrough whether to parse only the layers used
+   * @return the document
+   * @throws IOException if io problems
+   * @throws JDOMException if the document is not well formed
+   */
+  public static KAFDocument read(final Reader reader, final boolean passThrough)
+      throws IOException, JDOMException {
+    return passThrough ? NAFLayers.read(reader) : read(reader);
+  }
+
+  /**
+   * Write a NAF document.
+   * @param kaf the document
+   * @param writer the output, which is not closed
+   * @throws IOException if io problems
+   */
+  public static void write(final KAFDocument kaf, final Writer writer)
+      throws IOException {
+    long start = System.nanoTime();
+    Document dom = toDom(kaf);
+    NAFLayers layers = NAFLayers.of(kaf);
+    if (layers != null) {
+      // the text layer is copied from the input
+      if (dom != null) {
+        dom.getRootElement().removeChild("text");
+      }
+      layers.write(dom == null ? kaf.toString() : newOutputter().outputString(dom), writer);
+    } else if (dom == null) {
+      writer.write(kaf.toString());
+    } else {
+      newOutputter().output(dom, writer);
+    }
+    Metrics.time(Metrics.Stage.SERIALIZATION, start);
+  }
+
+  private static XMLOutputter newOutputter() {
+    return new XMLOutputter(Format.getPrettyFormat()
+        .setLineSeparator(LineSeparator.UNIX)
+        .setTextMode(Format.TextMode.TRIM_FULL_WHITE));
+  }
+
+  private static Document toDom(KAFDocument kaf) {
+    if (KAF_TO_DOM == null) {
+      return null;
+    }
+    try {
+      return (Document) KAF_TO_DOM.invoke(null, kaf);
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+}
@@ -0,0 +1,432 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.JDOMException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.WF;
+
+/**
+ * HTTP server for annotation, built on the JDK HTTP server, which keeps the
+ * connections alive between requests. Documents are posted to
+ * {@code /annotate} either as NAF or as JSON with the tokens of every
+ * sentence:
+ *
+ * <pre>
+ * {"sentences": [["The", "food", "was", "great", "."], ...]}
+ * </pre>
+ *
+ * JSON requests are annotated without building or parsing any XML. The
+ * response contains the opinions as JSON or the annotated NAF document; it
+ * defaults to the format of the request and can be chosen with the
+ * {@code format} query parameter (json or naf) or the Accept header. The
+ * {@code stages} query parameter chooses the stages of the request, such as
+ * {@code stages=ote,pol}; the default stages of the server are run otherwise.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
+public class OpinionHttpServer {
+
+  private static final String JSON_TYPE = "application/json; charset=utf-8";
+  private static final String NAF_TYPE = "application/xml; charset=utf-8";
+
+  /**
+   * Set while a request arriving with a full queue is answered in the
+   * dispatcher thread.
+   */
+  private static final ThreadLocal<Boolean> refusing = ThreadLocal.withInitial(() -> false);
+
+  /**
+   * Get dynamically the version of ixa-pipe-opinion by looking at the MANIFEST
+   * file.
+   */
+  private final String version = CLI.class.getPackage().getImplementationVersion();
+  /**
+   * Get the git commit of the ixa-pipe-opinion compiled by looking at the MANIFEST
+   * file.
+   */
+  private final String commit = CLI.class.getPackage().getSpecificationVersion();
+  /**
+   * The pipelines available to the workers, one per worker thread.
+   */
+  private final AnnotatorPool annotators;
+  /**
+   * The stages run when a request does not choose them.
+   */
+  private final List<String> defaultStages;
+  /**
+   * The language of the documents built from JSON requests.
+   */
+  private final String language;
+  /**
+   * The maximum size of a request body in bytes, 0 for no limit.
+   */
+  private final long maxDocumentSize;
+  /**
+   * The time allowed to annotate a document in milliseconds, 0 for no limit.
+   */
+  private final long deadline;
+  /**
+   * Whether to annotate only the sentences without up to date opinions.
+   */
+  private final boolean incremental;
+  /**
+   * Whether to parse only the layers used and copy the others unchanged.
+   */
+  private final boolean passThrough;
+
+  /**
+   * Construct and start an HTTP server.
+   * @param serverProperties the port, number of threads, queue size, default
+   *          stages, maximum document size, deadline, incremental and pass-through modes,
+   *          sentence batching, warm-up, metrics port and ready file
+   * @param properties the models and settings of the pipelines, as in
+   *          {@link AnnotatePipeline}
+   * @throws IOException if io problems
+   */
+  public OpinionHttpServer(Properties serverProperties, Properties properties)
+      throws IOException {
+
+    int port = Integer.parseInt(serverProperties.getProperty("port"));
+    int threads = Integer.parseInt(serverProperties.getProperty("threads"));
+    int queueSize = Integer.parseInt(serverProperties.getProperty("queueSize"));
+    language = properties.getProperty("language");
+    maxDocumentSize = Long.parseLong(serverProperties.getProperty("maxDocumentSize", "0"));
+    deadline = Long.parseLong(serverProperties.getProperty("deadline", "0"));
+    incremental = Boolean.parseBoolean(serverProperties.getProperty("incremental", "false"));
+    passThrough = Boolean.parseBoolean(serverProperties.getProperty("passThrough", "false"));
+    defaultStages = AnnotatePipeline.parseStages(serverProperties.getProperty("stages"));
+    String readyFile = serverProperties.getProperty("readyFile");
+    Readiness.starting(readyFile);
+    Metrics.register();
+    // the metrics port answers /ready with 503 while the models load and the
+    // server warms up, and its probes never wait behind annotation requests
+    int metricsPort = Integer.parseInt(serverProperties.getProperty("metricsPort", "0"));
+    if (metricsPort > 0) {
+      Metrics.serve(metricsPort);
+    }
+    annotators = new AnnotatorPool(threads, serverProperties, properties);
+    annotators.checkStages(defaultStages);
+    WarmUp.run(annotators, serverProperties, language);
+    long reloadModels = Long.parseLong(serverProperties.getProperty("reloadModels", "0"));
+    if (reloadModels > 0) {
+      ModelRegistry.watch(reloadModels);
+      System.out.println("-> Checking model files for changes every " + reloadModels + " seconds");
+    }
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+        (task, executor) -> {
+          // the queue is full: answer busy right away in the dispatcher
+          refusing.set(true);
+          try {
+            task.run();
+          } finally {
+            refusing.set(false);
+          }
+        });
+    Metrics.setQueueDepth(workers.getQueue()::size);
+    System.out.println("-> Trying to listen port... " + port);
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), queueSize);
+    server.createContext("/annotate", this::serveRequest);
+    Metrics.addEndpoint(server);
+    server.setExecutor(workers);
+    server.start();
+    System.out.println("-> Connected and listening to port " + port + " with " + threads
+        + " threads, HTTP endpoints /annotate, /metrics and /ready");
+    Readiness.ready(readyFile, "port " + port + " protocol http");
+  }
+
+  /**
+   * Annotate the document of a request and send back the result.
+   * @param exchange the request and response
+   * @throws IOException if io problems
+   */
+  private void serveRequest(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      if (refusing.get()) {
+        Metrics.rejected();
+        // do not read the body of the request in the dispatcher
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendError(exchange, 503, "Server busy, try again later");
+        return;
+      }
+      if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendError(exchange, 405, "Use POST to send the documents");
+        return;
+      }
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      boolean isJsonRequest = contentType != null
+          && contentType.toLowerCase().startsWith("application/json");
+      boolean isJsonResponse = isJsonResponse(exchange, isJsonRequest);
+      List<String> stages = defaultStages;
+      String stagesParameter = getQueryParameter(exchange, "stages");
+      if (stagesParameter != null) {
+        try {
+          stages = AnnotatePipeline.parseStages(stagesParameter);
+          annotators.checkStages(stages);
+        } catch (IllegalArgumentException e) {
+          sendError(exchange, 400, e.getMessage());
+          return;
+        }
+      }
+      String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+      long length;
+      try {
+        length = contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+      } catch (NumberFormatException e) {
+        sendError(exchange, 400, "Invalid Content-Length " + contentLength);
+        return;
+      }
+      if (maxDocumentSize > 0 && length > maxDocumentSize) {
+        exchange.getResponseHeaders().set("Connection", "close");
+        sendError(exchange, 413, new LimitedInputStream.TooLargeException(maxDocumentSize).getMessage());
+        return;
+      }
+      Deadline.start(deadline);
+      KAFDocument kaf;
+      try (Reader body = new InputStreamReader(new LimitedInputStream(
+          getDeadlineInput(exchange.getRequestBody()), maxDocumentSize), StandardCharsets.UTF_8)) {
+        kaf = isJsonRequest ? createFromJson(body) : NAFSerializer.read(body, passThrough);
+      } catch (Deadline.ExceededException e) {
+        // the HTTP server reads the rest of the request before closing a
+        // response with a body, so the slow client is answered without one
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(503, -1);
+        return;
+      } catch (JDOMException e) {
+        sendError(exchange, 400, "Badly formatted NAF document");
+        return;
+      } catch (LimitedInputStream.TooLargeException e) {
+        exchange.getResponseHeaders().set("Connection", "close");
+        sendError(exchange, 413, e.getMessage());
+        return;
+      } catch (IOException | IllegalArgumentException e) {
+        sendError(exchange, 400, e.getMessage());
+        return;
+      }
+      AnnotatorPool.Pooled pooled = annotators.take();
+      try {
+        annotate(pooled.getAnnotator(), stages, kaf);
+      } catch (Deadline.ExceededException e) {
+        pooled.invalidate();
+        sendError(exchange, 503, e.getMessage());
+        return;
+      } finally {
+        annotators.release(pooled);
+      }
+      if (isJsonResponse) {
+        StringWriter json = new StringWriter();
+        OpinionWriter.writeJsonObject(kaf, json);
+        sendJson(exchange, 200, json.toString());
+        failed = false;
+      } else {
+        exchange.getResponseHeaders().set("Content-Type", NAF_TYPE);
+        // chunked, the document is serialized straight to the connection
+        exchange.sendResponseHeaders(200, 0);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+            exchange.getResponseBody(), StandardCharsets.UTF_8));
+        NAFSerializer.write(kaf, writer);
+        writer.close();
+        failed = false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendError(exchange, 503, "Server shutting down");
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      sendError(exchange, 500, "Annotation failed");
+    } finally {
+      Deadline.clear();
+      exchange.close();
+      if (!refusing.get()) {
+        Metrics.request(start, failed);
+      }
+    }
+  }
+
+  /**
+   * Get the body of a request checking the deadline before every read, as
+   * the HTTP server has no read timeout of its own, so that a client sending
+   * its document slowly gets a 503 response once the deadline expires and
+   * its connection is closed without waiting for the rest of the body.
+   * @param body the body of the request
+   * @return the input
+   */
+  private static InputStream getDeadlineInput(final InputStream body) {
+    return new FilterInputStream(body) {
+      @Override
+      public int read() throws IOException {
+        Deadline.checkReading();
+        return super.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        Deadline.checkReading();
+        return super.read(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        // closing drains the rest of the body, which must not delay the
+        // error response of an expired request
+        if (Deadline.remainingNanos() > 0) {
+          super.close();
+        }
+      }
+    };
+  }
+
+  private static boolean isJsonResponse(HttpExchange exchange, boolean isJsonRequest) {
+    String format = getQueryParameter(exchange, "format");
+    if (format != null) {
+      if (format.equalsIgnoreCase("json")) {
+        return true;
+      } else if (format.equalsIgnoreCase("naf")) {
+        return false;
+      }
+    }
+    String accept = exchange.getRequestHeaders().getFirst("Accept");
+    if (accept != null) {
+      if (accept.contains("application/json")) {
+        return true;
+      } else if (accept.contains("xml")) {
+        return false;
+      }
+    }
+    return isJsonRequest;
+  }
+
+  /**
+   * Get the value of a query parameter of a request.
+   * @param exchange the request
+   * @param name the name of the parameter
+   * @return the value, null if the parameter is not in the query
+   */
+  private static String getQueryParameter(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+          return parameter.substring(equals + 1);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Build a document with the tokens of a JSON request, one term per token.
+   * @param body the JSON request
+   * @return the document
+   * @throws IOException if the request is not valid
+   */
+  private KAFDocument createFromJson(Reader body) throws IOException {
+    Object request = Json.parse(body);
+    if (!(request instanceof Map)) {
+      throw new IllegalArgumentException("The request must be a JSON object");
+    }
+    Object sentences = ((Map<?, ?>) request).get("sentences");
+    if (!(sentences instanceof List)) {
+      throw new IllegalArgumentException("The request requires a sentences array");
+    }
+    KAFDocument kaf = new KAFDocument(language, "v3");
+    int offset = 0;
+    int sent = 1;
+    for (Object sentence : (List<?>) sentences) {
+      if (!(sentence instanceof List) || ((List<?>) sentence).isEmpty()) {
+        throw new IllegalArgumentException("Every sentence must be a non empty array of tokens");
+      }
+      for (Object token : (List<?>) sentence) {
+        if (!(token instanceof String)) {
+          throw new IllegalArgumentException("Every token must be a string");
+        }
+        String form = (String) token;
+        WF wf = kaf.newWF(offset, form, sent);
+        List<WF> wfs = new ArrayList<>(Collections.singletonList(wf));
+        kaf.newTerm(KAFDocument.newWFSpan(wfs));
+        offset += form.length() + 1;
+      }
+      sent++;
+    }
+    return kaf;
+  }
+
+  /**
+   * Annotate a document.
+   * @param annotator the pipeline
+   * @param stages the stages to run
+   * @param kaf the document
+   */
+  private void annotate(AnnotatePipeline annotator, List<String> stages, KAFDocument kaf) {
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(
+        kaf, "ixa-pipe-opinion-" + String.join("-", stages),
+        version + "-" + commit, incremental);
+    newLp.setBeginTimestamp();
+    annotator.annotate(kaf, stages);
+    newLp.setEndTimestamp();
+    Metrics.document(kaf);
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String message)
+      throws IOException {
+    StringBuilder json = new StringBuilder("{\"error\":");
+    Json.appendString(json, message);
+    json.append('}');
+    sendJson(exchange, status, json.toString());
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, String json)
+      throws IOException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+}
@@ -16,26 +16,56 @@
 
 package eus.ixa.ixa.pipe.opinion;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jdom2.JDOMException;
 
-import com.google.common.io.Files;
-
 import ixa.kaflib.KAFDocument;
 
+/**
+ * TCP server annotating NAF documents with the stages of a pipeline whose
+ * models are loaded once at start up. Every request runs the default stages
+ * of the server unless its document is preceded by a line choosing others,
+ * such as {@code stages: ote,pol}. Connections are read either by the
+ * workers themselves or, with the reactors server property, by the
+ * non-blocking {@link ReactorServer}.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
 public class OpinionTaggerServer {
 
+  /**
+   * The start of the optional line before a document choosing its stages.
+   */
+  public static final String STAGES_HEADER = "stages:";
+
   /**
    * Get dynamically the version of ixa-pipe-opinion by looking at the MANIFEST
    * file.
@@ -47,80 +77,130 @@ public class OpinionTaggerServer {
    */
   private final String commit = CLI.class.getPackage().getSpecificationVersion();
   /**
-   * The aspect and target model.
+   * The annotation output format, one of NAF (default), tabulated or jsonl.
+   */
+  private String outputFormat;
+  /**
+   * The stages run when a request does not choose them.
+   */
+  private List<String> defaultStages;
+  /**
+   * The pipelines available to the workers, one per worker thread.
+   */
+  private AnnotatorPool annotators;
+  /**
+   * The protocol spoken with the clients: naf (one document per connection,
+   * default) or framed (many length-prefixed documents per connection).
+   */
+  private String protocol;
+  /**
+   * The maximum size of a document in bytes, 0 for no limit.
+   */
+  private long maxDocumentSize;
+  /**
+   * The time allowed to annotate a document in milliseconds, 0 for no limit.
    */
-  private String targetModel;
+  private long deadline;
   /**
-   * The polarity classification model.
+   * The time a framed connection may wait for its next request in
+   * milliseconds, 0 for no limit.
    */
-  private String polarityModel;
+  private int idleTimeout;
   /**
-   * The annotation output format, one of NAF (default) or tabulated.
+   * Whether to annotate only the sentences without up to date opinions.
    */
-  //private String outputFormat;
-  
+  private boolean incremental;
+  /**
+   * Whether to parse only the layers used and copy the others unchanged.
+   */
+  private boolean passThrough;
+
   /**
    * Construct a server.
-   * @param port the port number
-   * @param oteProperties the properties of the target and aspect labeler
-   * @param polProperties the polarity classifier properties
+   * @param serverProperties the port, number of threads, queue size, protocol,
+   *          default stages, output format, maximum document size, deadline,
+   *          idle timeout, incremental and pass-through modes, sentence batching, warm-up, ready file and reactors
+   * @param properties the models and settings of the pipelines, as in
+   *          {@link AnnotatePipeline}
    * @throws IOException if io problems
    */
-  public OpinionTaggerServer(String port, Properties oteProperties, Properties polProperties) throws IOException {
+  public OpinionTaggerServer(Properties serverProperties, Properties properties) throws IOException {
 
+    String port = serverProperties.getProperty("port");
     int portNumber = Integer.parseInt(port);
-    targetModel = oteProperties.getProperty("targetModel");
-    polarityModel = polProperties.getProperty("polarityModel");
-    //outputFormat = oteProperties.getProperty("outputFormat");
-    Annotate annotator = new AnnotateAbsa(oteProperties, polProperties);
-    String kafToString;
+    int threads = Integer.parseInt(serverProperties.getProperty("threads"));
+    int queueSize = Integer.parseInt(serverProperties.getProperty("queueSize"));
+    protocol = serverProperties.getProperty("protocol");
+    maxDocumentSize = Long.parseLong(serverProperties.getProperty("maxDocumentSize", "0"));
+    deadline = Long.parseLong(serverProperties.getProperty("deadline", "0"));
+    idleTimeout = Integer.parseInt(serverProperties.getProperty("idleTimeout", "0"));
+    incremental = Boolean.parseBoolean(serverProperties.getProperty("incremental", "false"));
+    passThrough = Boolean.parseBoolean(serverProperties.getProperty("passThrough", "false"));
+    outputFormat = serverProperties.getProperty("outputFormat", "naf");
+    defaultStages = AnnotatePipeline.parseStages(serverProperties.getProperty("stages"));
+    String readyFile = serverProperties.getProperty("readyFile");
+    Readiness.starting(readyFile);
+    Metrics.register();
+    int metricsPort = Integer.parseInt(serverProperties.getProperty("metricsPort", "0"));
+    if (metricsPort > 0) {
+      Metrics.serve(metricsPort);
+    }
+    annotators = new AnnotatorPool(threads, serverProperties, properties);
+    annotators.checkStages(defaultStages);
+    WarmUp.run(annotators, serverProperties, properties.getProperty("language"));
+    long reloadModels = Long.parseLong(serverProperties.getProperty("reloadModels", "0"));
+    if (reloadModels > 0) {
+      ModelRegistry.watch(reloadModels);
+      System.out.println("-> Checking model files for changes every " + reloadModels + " seconds");
+    }
+    // connections arriving when the queue is full are refused
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize));
+    Metrics.setQueueDepth(workers.getQueue()::size);
+    int reactors = Integer.parseInt(serverProperties.getProperty("reactors", "0"));
+    if (reactors > 0) {
+      try {
+        System.out.println("-> Trying to listen port... " + port);
+        ReactorServer reactorServer = new ReactorServer(this, workers, protocol.equalsIgnoreCase("framed"),
+            reactors, maxDocumentSize, deadline, portNumber);
+        System.out.println("-> Connected and listening to port " + port + " with " + reactors
+            + " reactors and " + threads + " threads");
+        Readiness.ready(readyFile, "port " + port + " protocol " + protocol);
+        reactorServer.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+        System.err.println("-> IOException due to failing to create the TCP socket.");
+      } finally {
+        System.out.println("closing tcp socket...");
+        workers.shutdown();
+      }
+      return;
+    }
     ServerSocket socketServer = null;
-    Socket activeSocket;
-    BufferedReader inFromClient;
-    BufferedWriter outToClient = null;
 
     try {
       System.out.println("-> Trying to listen port... " + port);
       socketServer = new ServerSocket(portNumber);
-      System.out.println("-> Connected and listening to port " + port);
+      System.out.println("-> Connected and listening to port " + port + " with " + threads + " threads");
+      Readiness.ready(readyFile, "port " + port + " protocol " + protocol);
       while (true) {
+        final Socket activeSocket = socketServer.accept();
         try {
-          activeSocket = socketServer.accept();
-          inFromClient = new BufferedReader(new InputStreamReader(activeSocket.getInputStream(),
-              StandardCharsets.UTF_8));
-          outToClient = new BufferedWriter(new OutputStreamWriter(activeSocket.getOutputStream(),
-              StandardCharsets.UTF_8));
-          //get data from client
-          String stringFromClient = getClientData(inFromClient);
-          // annotate
-          assert annotator != null;
-          kafToString = getAnnotations(annotator, stringFromClient);
-        } catch (JDOMException e) {
-          kafToString = "\n-> ERROR: Badly formatted NAF document!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (UnsupportedEncodingException e) {
-          kafToString = "\n-> ERROR: UTF-8 not supported!!\n";
-          assert outToClient != null;
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (IOException e) {
-          kafToString = "\n -> ERROR: Input data not correct!!\n";
-          assert outToClient != null;
-          sendDataToClient(outToClient, kafToString);
-          continue;
+          if (protocol.equalsIgnoreCase("framed")) {
+            workers.execute(() -> serveFramedClient(activeSocket));
+          } else {
+            workers.execute(() -> serveClient(activeSocket));
+          }
+        } catch (RejectedExecutionException e) {
+          refuseClient(activeSocket);
         }
-        //send data to server after all exceptions and close the outToClient
-        sendDataToClient(outToClient, kafToString);
-        //close the resources
-        inFromClient.close();
-        activeSocket.close();
       } //end of processing block
     } catch (IOException e) {
       e.printStackTrace();
       System.err.println("-> IOException due to failing to create the TCP socket or to wrongly provided model path.");
     } finally {
       System.out.println("closing tcp socket...");
+      workers.shutdown();
       try {
         assert socketServer != null;
         socketServer.close();
@@ -129,31 +209,276 @@ public class OpinionTaggerServer {
       }
     }
   }
-  
+
   /**
-   * Read data from the client and output to a String.
-   * @param inFromClient the client inputstream
-   * @return the string from the client
+   * Tell a client that every worker is busy and the queue is full, and close
+   * its connection. Runs in the thread accepting the connections.
+   * @param activeSocket the client socket
    */
-  private String getClientData(BufferedReader inFromClient) {
-    StringBuilder stringFromClient = new StringBuilder();
-    try {
-      String line;
-      while ((line = inFromClient.readLine()) != null) {
-        if (line.matches("<ENDOFDOCUMENT>")) {
+  private void refuseClient(Socket activeSocket) {
+    Metrics.rejected();
+    try (Socket socket = activeSocket) {
+      if (protocol.equalsIgnoreCase("framed")) {
+        DataOutputStream outToClient = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        FramedProtocol.writeResponse(outToClient, FramedProtocol.NO_REQUEST, FramedProtocol.BUSY,
+            "-> ERROR: Server busy, try again later!!".getBytes(StandardCharsets.UTF_8));
+        outToClient.flush();
+      } else {
+        sendDataToClient(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+            StandardCharsets.UTF_8)), "\n-> ERROR: Server busy, try again later!!\n");
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Annotate the document sent by a client and send back the result. Runs in
+   * one of the worker threads.
+   * @param activeSocket the client socket
+   */
+  private void serveClient(Socket activeSocket) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    String errorMessage = null;
+    KAFDocument kaf = null;
+    BufferedWriter outToClient = null;
+    try (Socket socket = activeSocket;
+        BufferedReader inFromClient = new BufferedReader(new InputStreamReader(
+            new LimitedInputStream(getDeadlineInput(socket), maxDocumentSize), StandardCharsets.UTF_8))) {
+      outToClient = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+          StandardCharsets.UTF_8));
+      try {
+        Deadline.start(deadline);
+        //get data from client
+        String stringFromClient = getClientData(inFromClient);
+        Reader document = new StringReader(stringFromClient);
+        List<String> stages = defaultStages;
+        if (stringFromClient.startsWith(STAGES_HEADER)) {
+          int endOfLine = stringFromClient.indexOf('\n');
+          stages = AnnotatePipeline.parseStages(stringFromClient.substring(STAGES_HEADER.length(), endOfLine));
+          document.skip(endOfLine + 1);
+        }
+        annotators.checkStages(stages);
+        // annotate
+        AnnotatorPool.Pooled pooled = annotators.take();
+        try {
+          kaf = getAnnotations(pooled.getAnnotator(), stages, document);
+        } catch (Deadline.ExceededException e) {
+          pooled.invalidate();
+          throw e;
+        } finally {
+          annotators.release(pooled);
+        }
+      } catch (JDOMException e) {
+        errorMessage = "\n-> ERROR: Badly formatted NAF document!!\n";
+      } catch (UnsupportedEncodingException e) {
+        errorMessage = "\n-> ERROR: UTF-8 not supported!!\n";
+      } catch (LimitedInputStream.TooLargeException e) {
+        errorMessage = "\n-> ERROR: " + e.getMessage() + "!!\n";
+      } catch (SocketTimeoutException e) {
+        errorMessage = "\n-> ERROR: Timed out reading the document!!\n";
+      } catch (IOException e) {
+        errorMessage = "\n -> ERROR: Input data not correct!!\n";
+      } catch (Deadline.ExceededException | IllegalArgumentException | IllegalStateException e) {
+        errorMessage = "\n-> ERROR: " + e.getMessage() + "!!\n";
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        errorMessage = "\n-> ERROR: Server shutting down!!\n";
+      } finally {
+        Deadline.clear();
+      }
+      //send data to server after all exceptions and close the outToClient
+      if (errorMessage == null) {
+        // serializing does not use the adaptive data, so the annotator
+        // can be back in the pool already
+        writeAnnotations(kaf, outToClient);
+        outToClient.close();
+        failed = false;
+      } else {
+        sendDataToClient(outToClient, errorMessage);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      Metrics.request(start, failed);
+    }
+  }
+
+  /**
+   * Annotate every document sent through a persistent framed connection
+   * until the client closes it or leaves it idle for longer than the idle
+   * timeout, as the connection holds a worker meanwhile. Each document is
+   * parsed straight from the socket, within the deadline of its request
+   * started as soon as its frame arrives, and the responses are sent back in
+   * the order of the requests.
+   * @param activeSocket the client socket
+   */
+  private void serveFramedClient(Socket activeSocket) {
+    // the response is serialized into a buffer reused for the whole
+    // connection, as its length has to be sent before it
+    ResponseBuffer response = new ResponseBuffer();
+    Writer responseWriter = new BufferedWriter(new OutputStreamWriter(response, StandardCharsets.UTF_8));
+    try (Socket socket = activeSocket;
+        DataInputStream inFromClient = new DataInputStream(new BufferedInputStream(getDeadlineInput(socket)));
+        DataOutputStream outToClient = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      while (true) {
+        int requestId;
+        try {
+          // without a deadline, the idle timeout also bounds every read
+          // of the frame
+          socket.setSoTimeout(idleTimeout);
+          requestId = inFromClient.readInt();
+        } catch (EOFException | SocketTimeoutException e) {
           break;
         }
-        stringFromClient.append(line).append("\n");
-        if (line.matches("</NAF>")) {
+        long start = System.nanoTime();
+        int status;
+        response.reset();
+        Deadline.start(deadline);
+        try {
+          int length = FramedProtocol.readLength(inFromClient);
+          try (InputStream document = new BufferedInputStream(
+              FramedProtocol.documentStream(inFromClient, length))) {
+            if (maxDocumentSize > 0 && length > maxDocumentSize) {
+              // closing the document skips it, the connection can go on
+              status = FramedProtocol.ERROR;
+              responseWriter.write("-> ERROR: "
+                  + new LimitedInputStream.TooLargeException(maxDocumentSize).getMessage() + "!!");
+            } else {
+              status = annotate(document, responseWriter);
+            }
+          }
+        } catch (SocketTimeoutException e) {
+          // the rest of the frame is unknown, answer and close the connection
+          responseWriter.flush();
+          response.reset();
+          responseWriter.write("-> ERROR: Timed out reading the document!!");
+          responseWriter.flush();
+          FramedProtocol.writeResponse(outToClient, requestId, FramedProtocol.ERROR, response);
+          Metrics.request(start, true);
+          break;
+        } finally {
+          Deadline.clear();
+        }
+        responseWriter.flush();
+        FramedProtocol.writeResponse(outToClient, requestId, status, response);
+        Metrics.request(start, status == FramedProtocol.ERROR);
+        // flush only when no other request is already waiting, so that
+        // pipelined responses are written in as few packets as possible
+        if (inFromClient.available() == 0) {
+          outToClient.flush();
+        }
+        if (status == FramedProtocol.ERROR && Thread.currentThread().isInterrupted()) {
           break;
         }
       }
-    }catch (IOException e) {
+      outToClient.flush();
+    } catch (IOException e) {
       e.printStackTrace();
     }
+  }
+
+  /**
+   * Annotate one document of the framed protocol, which may start with the
+   * line choosing its stages, and write the annotated document or the error
+   * message. The caller starts the deadline of the request, so that it also
+   * bounds receiving the document.
+   * @param document the document, which must support mark
+   * @param responseWriter the output
+   * @return the status of the response, {@link FramedProtocol#OK} or
+   *         {@link FramedProtocol#ERROR}
+   * @throws IOException if the document or the response cannot be transferred
+   */
+  int annotate(InputStream document, Writer responseWriter) throws IOException {
+    try {
+      List<String> stages = readStages(document);
+      annotators.checkStages(stages);
+      AnnotatorPool.Pooled pooled = annotators.take();
+      KAFDocument kaf;
+      try {
+        kaf = getAnnotations(pooled.getAnnotator(), stages,
+            new InputStreamReader(document, StandardCharsets.UTF_8));
+      } catch (Deadline.ExceededException e) {
+        pooled.invalidate();
+        throw e;
+      } finally {
+        annotators.release(pooled);
+      }
+      writeAnnotations(kaf, responseWriter);
+      return FramedProtocol.OK;
+    } catch (JDOMException e) {
+      responseWriter.write("-> ERROR: Badly formatted NAF document!!");
+    } catch (Deadline.ExceededException | IllegalArgumentException | IllegalStateException e) {
+      responseWriter.write("-> ERROR: " + e.getMessage() + "!!");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      responseWriter.write("-> ERROR: Server shutting down!!");
+    } finally {
+      Deadline.clear();
+    }
+    return FramedProtocol.ERROR;
+  }
+
+  /**
+   * Get the input of a client socket which reads with a timeout of the time
+   * left to the deadline of the request, so that a client sending the
+   * document too slowly, even one byte at a time, does not hold the worker
+   * longer than the deadline in total.
+   * @param socket the client socket
+   * @return the input
+   * @throws IOException if io problems
+   */
+  private static InputStream getDeadlineInput(final Socket socket) throws IOException {
+    return new FilterInputStream(socket.getInputStream()) {
+      @Override
+      public int read() throws IOException {
+        setTimeout();
+        return super.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        setTimeout();
+        return super.read(b, off, len);
+      }
+
+      private void setTimeout() throws IOException {
+        long remaining = Deadline.remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+          return;
+        }
+        if (remaining <= 0) {
+          throw new SocketTimeoutException("Deadline exceeded while reading the document");
+        }
+        socket.setSoTimeout((int) Math.max(1, Math.min(
+            TimeUnit.NANOSECONDS.toMillis(remaining), Integer.MAX_VALUE)));
+      }
+    };
+  }
+
+  /**
+   * Read data from the client and output to a String.
+   * @param inFromClient the client inputstream
+   * @return the string from the client
+   * @throws IOException if io error, if the document is too large or if
+   *           the client is too slow
+   */
+  private String getClientData(BufferedReader inFromClient) throws IOException {
+    StringBuilder stringFromClient = new StringBuilder();
+    String line;
+    while ((line = inFromClient.readLine()) != null) {
+      if (line.equals("<ENDOFDOCUMENT>")) {
+        break;
+      }
+      stringFromClient.append(line).append("\n");
+      if (line.equals("</NAF>")) {
+        break;
+      }
+    }
     return stringFromClient.toString();
   }
-  
+
   /**
    * Send data back to server after annotation.
    * @param outToClient the outputstream to the client
@@ -164,41 +489,73 @@ public class OpinionTaggerServer {
     outToClient.write(kafToString);
     outToClient.close();
   }
-  
+
+  /**
+   * Read the line choosing the stages of a framed request, if its document
+   * starts with one.
+   * @param document the document, which must support mark
+   * @return the stages of the request
+   * @throws IOException if io error
+   */
+  private List<String> readStages(InputStream document) throws IOException {
+    document.mark(STAGES_HEADER.length());
+    for (int i = 0; i < STAGES_HEADER.length(); i++) {
+      if (document.read() != STAGES_HEADER.charAt(i)) {
+        document.reset();
+        return defaultStages;
+      }
+    }
+    StringBuilder stages = new StringBuilder();
+    int c;
+    while ((c = document.read()) >= 0 && c != '\n') {
+      if (stages.length() > 1024) {
+        throw new IllegalArgumentException("The stages line is too long");
+      }
+      stages.append((char) c);
+    }
+    return AnnotatePipeline.parseStages(stages.toString());
+  }
+
+  /**
+   * Write an annotated document in the output format of the server.
+   * @param kaf the annotated document
+   * @param writer the output
+   * @throws IOException if io error
+   */
+  private void writeAnnotations(KAFDocument kaf, Writer writer) throws IOException {
+    if (OpinionWriter.isOpinionFormat(outputFormat)) {
+      new OpinionWriter(outputFormat).write(kaf, writer);
+    } else {
+      NAFSerializer.write(kaf, writer);
+    }
+  }
+
   /**
-   * OTE annotator.
-   * 
+   * Parse a NAF document and annotate it.
+   *
    * @param annotator
-   *          the annotator
-   * @param stringFromClient
-   *          the string to be annotated
-   * @return the annotation result
+   *          the pipeline
+   * @param stages
+   *          the stages to run
+   * @param clientReader
+   *          the reader containing the NAF document
+   * @return the annotated document
    * @throws IOException
    *           if io error
    * @throws JDOMException
    *           if xml error
    */
-  private String getAnnotations(Annotate annotator, String stringFromClient)
-      throws IOException, JDOMException {
-    // get a breader from the string coming from the client
-    BufferedReader clientReader = new BufferedReader(new StringReader(
-        stringFromClient));
-    KAFDocument kaf = KAFDocument.createFromStream(clientReader);
-    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "opinions", "ixa-pipe-opinion-" + "jar",
-        version + "-" + commit);
+  private KAFDocument getAnnotations(AnnotatePipeline annotator, List<String> stages,
+      Reader clientReader) throws IOException, JDOMException {
+    KAFDocument kaf = NAFSerializer.read(clientReader, passThrough);
+    KAFDocument.LinguisticProcessor newLp = Incremental.addLinguisticProcessor(
+        kaf, "ixa-pipe-opinion-" + String.join("-", stages),
+        version + "-" + commit, incremental);
     newLp.setBeginTimestamp();
-    annotator.annotate(kaf);
+    annotator.annotate(kaf, stages);
     newLp.setEndTimestamp();
-    // get outputFormat
-    String kafToString = annotator.annotateToNAF(kaf);
-    /*if (outputFormat.equalsIgnoreCase("tabulated")) {
-      kafToString = annotator.annotateToNAF(kaf);
-    } else {
-      kafToString = annotator.annotateToNAF(kaf);
-    }
-     */
-    return kafToString;
+    Metrics.document(kaf);
+    return kaf;
   }
 
 }
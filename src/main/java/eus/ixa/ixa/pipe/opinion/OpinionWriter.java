@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Opinion;
+import ixa.kaflib.Opinion.OpinionExpression;
+import ixa.kaflib.Term;
+
+/**
+ * Writes the opinions of an annotated document without serializing the NAF
+ * document, one opinion per line, either tabulated or as JSON Lines. Every
+ * line contains the opinion id, the sentence, the target term ids and words,
+ * the aspect and the polarity of an opinion; missing values are written as
+ * {@code -} in the tabulated format and as {@code null} in JSON.
+ *
+ * @author ragerri
+ * @version 2018-05-08
+ *
+ */
+public class OpinionWriter {
+
+  /**
+   * Tab separated values.
+   */
+  public static final String TABULATED = "tabulated";
+  /**
+   * One JSON object per line.
+   */
+  public static final String JSONL = "jsonl";
+  /**
+   * The value of a missing field in the tabulated format.
+   */
+  private static final String NONE = "-";
+
+  /**
+   * The output format, tabulated or jsonl.
+   */
+  private final String format;
+
+  /**
+   * Construct an opinion writer.
+   * @param format the output format, tabulated or jsonl
+   */
+  public OpinionWriter(final String format) {
+    if (!format.equalsIgnoreCase(TABULATED) && !format.equalsIgnoreCase(JSONL)) {
+      throw new IllegalArgumentException("Unknown opinion output format " + format);
+    }
+    this.format = format;
+  }
+
+  /**
+   * Whether an output format is written by this class instead of as NAF.
+   * @param format the output format
+   * @return true for the tabulated and jsonl formats
+   */
+  public static boolean isOpinionFormat(final String format) {
+    return format.equalsIgnoreCase(TABULATED) || format.equalsIgnoreCase(JSONL);
+  }
+
+  /**
+   * Write the opinions of a document.
+   * @param kaf the annotated document
+   * @param writer the output
+   * @throws IOException if io problems
+   */
+  public final void write(final KAFDocument kaf, final Writer writer)
+      throws IOException {
+    write(kaf, null, writer);
+  }
+
+  /**
+   * Write the opinions of a document adding its name to every opinion; in the
+   * tabulated format the name is written in a comment line before them.
+   * @param kaf the annotated document
+   * @param name the name of the document, it can be null
+   * @param writer the output
+   * @throws IOException if io problems
+   */
+  public final void write(final KAFDocument kaf, final String name,
+      final Writer writer) throws IOException {
+    long start = System.nanoTime();
+    boolean isJson = format.equalsIgnoreCase(JSONL);
+    if (name != null && !isJson) {
+      writer.write("# ");
+      writer.write(name);
+      writer.write('\n');
+    }
+    StringBuilder line = new StringBuilder();
+    for (Opinion opinion : kaf.getOpinions()) {
+      line.setLength(0);
+      if (isJson) {
+        appendJson(line, name, opinion.getId(), opinion);
+      } else {
+        appendTabulated(line, opinion.getId(), opinion);
+      }
+      line.append('\n');
+      writer.append(line);
+    }
+    Metrics.time(Metrics.Stage.SERIALIZATION, start);
+  }
+
+  /**
+   * Write opinions annotated apart from their document, numbering their ids
+   * from the given one, as the streaming mode annotates every sentence as a
+   * document of its own.
+   * @param opinions the opinions
+   * @param firstId the number of the id of the first opinion
+   * @param writer the output
+   * @throws IOException if io problems
+   */
+  final void write(final List<Opinion> opinions, final int firstId,
+      final Writer writer) throws IOException {
+    long start = System.nanoTime();
+    boolean isJson = format.equalsIgnoreCase(JSONL);
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < opinions.size(); i++) {
+      line.setLength(0);
+      String id = "o" + (firstId + i);
+      if (isJson) {
+        appendJson(line, null, id, opinions.get(i));
+      } else {
+        appendTabulated(line, id, opinions.get(i));
+      }
+      line.append('\n');
+      writer.append(line);
+    }
+    Metrics.time(Metrics.Stage.SERIALIZATION, start);
+  }
+
+  /**
+   * Write the opinions of a document as a JSON object with an opinions
+   * array, whatever the format of this writer.
+   * @param kaf the annotated document
+   * @param writer the output
+   * @throws IOException if io problems
+   */
+  public static void writeJsonObject(final KAFDocument kaf, final Writer writer)
+      throws IOException {
+    long start = System.nanoTime();
+    StringBuilder json = new StringBuilder("{\"opinions\":[");
+    boolean first = true;
+    for (Opinion opinion : kaf.getOpinions()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      appendJson(json, null, opinion.getId(), opinion);
+    }
+    json.append("]}");
+    writer.append(json);
+    Metrics.time(Metrics.Stage.SERIALIZATION, start);
+  }
+
+  /**
+   * Get the opinions of a document as a string.
+   * @param kaf the annotated document
+   * @return the opinions
+   */
+  public final String toString(final KAFDocument kaf) {
+    StringWriter writer = new StringWriter();
+    try {
+      write(kaf, writer);
+    } catch (IOException e) {
+      // a StringWriter does not throw
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  private static List<Term> getTargetTerms(Opinion opinion) {
+    return opinion.hasOpinionTarget() ? opinion.getOpinionTarget().getTerms() : null;
+  }
+
+  private static Integer getSentence(Opinion opinion) {
+    List<Term> targetTerms = getTargetTerms(opinion);
+    if (targetTerms != null && !targetTerms.isEmpty()) {
+      return targetTerms.get(0).getSent();
+    }
+    if (opinion.hasOpinionExpression()) {
+      List<Term> expressionTerms = opinion.getOpinionExpression().getTerms();
+      if (!expressionTerms.isEmpty()) {
+        return expressionTerms.get(0).getSent();
+      }
+    }
+    return null;
+  }
+
+  private static String getAspect(Opinion opinion) {
+    OpinionExpression expression = opinion.getOpinionExpression();
+    return expression != null && expression.hasSentimentProductFeature()
+        ? expression.getSentimentProductFeature() : null;
+  }
+
+  private static String getPolarity(Opinion opinion) {
+    OpinionExpression expression = opinion.getOpinionExpression();
+    return expression != null && expression.hasPolarity() ? expression.getPolarity() : null;
+  }
+
+  private static void appendTabulated(StringBuilder line, String id, Opinion opinion) {
+    Integer sentence = getSentence(opinion);
+    List<Term> targetTerms = getTargetTerms(opinion);
+    String aspect = getAspect(opinion);
+    String polarity = getPolarity(opinion);
+    line.append(id).append('\t');
+    line.append(sentence == null ? NONE : sentence.toString()).append('\t');
+    if (targetTerms == null || targetTerms.isEmpty()) {
+      line.append(NONE).append('\t').append(NONE);
+    } else {
+      appendTermIds(line, targetTerms);
+      line.append('\t');
+      appendTermForms(line, targetTerms);
+    }
+    line.append('\t').append(aspect == null ? NONE : aspect);
+    line.append('\t').append(polarity == null ? NONE : polarity);
+  }
+
+  private static void appendJson(StringBuilder line, String name, String id, Opinion opinion) {
+    Integer sentence = getSentence(opinion);
+    List<Term> targetTerms = getTargetTerms(opinion);
+    String aspect = getAspect(opinion);
+    String polarity = getPolarity(opinion);
+    line.append('{');
+    if (name != null) {
+      line.append("\"document\":");
+      Json.appendString(line, name);
+      line.append(',');
+    }
+    line.append("\"opinion\":");
+    Json.appendString(line, id);
+    line.append(",\"sentence\":").append(sentence);
+    line.append(",\"target\":");
+    if (targetTerms == null || targetTerms.isEmpty()) {
+      line.append("null,\"targetTerms\":[]");
+    } else {
+      StringBuilder form = new StringBuilder();
+      appendTermForms(form, targetTerms);
+      Json.appendString(line, form.toString());
+      line.append(",\"targetTerms\":[");
+      for (int i = 0; i < targetTerms.size(); i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+        Json.appendString(line, targetTerms.get(i).getId());
+      }
+      line.append(']');
+    }
+    line.append(",\"aspect\":");
+    Json.appendString(line, aspect);
+    line.append(",\"polarity\":");
+    Json.appendString(line, polarity);
+    line.append('}');
+  }
+
+  private static void appendTermIds(StringBuilder line, List<Term> terms) {
+    for (int i = 0; i < terms.size(); i++) {
+      if (i > 0) {
+        line.append(',');
+      }
+      line.append(terms.get(i).getId());
+    }
+  }
+
+  private static void appendTermForms(StringBuilder line, List<Term> terms) {
+    for (int i = 0; i < terms.size(); i++) {
+      if (i > 0) {
+        line.append(' ');
+      }
+      line.append(terms.get(i).getForm());
+    }
+  }
+
+}
@@ -0,0 +1,383 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Opinion;
+import ixa.kaflib.Opinion.OpinionExpression;
+import ixa.kaflib.Opinion.OpinionHolder;
+import ixa.kaflib.Span;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+/**
+ * Annotates the independent parts of a single document in parallel. If the
+ * adaptive features are cleared after every sentence the sentences do not
+ * depend on each other, and if they are cleared at every -DOCSTART- mark
+ * neither do the segments starting at each mark. Such a document is split
+ * into chunks of contiguous sentences which never cut a segment; every chunk
+ * is annotated by a worker thread with its own annotator as a document of its
+ * own, with the word form and term ids of the original one, and the opinions
+ * of the chunks are then added to the document in document order. The result
+ * is the same as annotating the document sequentially. Documents whose
+ * features are never cleared, or with a single segment, are annotated
+ * sequentially by the calling thread. The chunks have the deadline of the
+ * request of the calling thread, and several parallel annotators, such as
+ * those of the stages of a pipeline, may share the same worker threads.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
+public class ParallelAnnotator implements Annotate {
+
+  /**
+   * The number of chunks of a document for each worker, so that the workers
+   * stay busy when some chunks take longer than others.
+   */
+  private static final int CHUNKS_PER_WORKER = 4;
+
+  /**
+   * Clear features after every sentence or when a -DOCSTART- mark appears.
+   */
+  private final String clearFeatures;
+  /**
+   * The number of worker threads.
+   */
+  private final int workers;
+  /**
+   * The annotator of each worker thread and of the calling thread.
+   */
+  private final ThreadLocal<Annotate> annotators;
+  /**
+   * The worker threads.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Create a parallel annotator with worker threads of its own, loading the
+   * models.
+   * @param factory creates the annotator of each thread
+   * @param language the language of the documents
+   * @param clearFeatures the clearFeatures option of the annotators
+   * @param workers the number of worker threads
+   * @throws IOException if the models cannot be loaded
+   */
+  public ParallelAnnotator(final BatchAnnotator.AnnotatorFactory factory,
+      final String language, final String clearFeatures, final int workers)
+      throws IOException {
+    this(factory, language, clearFeatures, workers, newExecutor(workers));
+  }
+
+  /**
+   * Create a parallel annotator, loading the models.
+   * @param factory creates the annotator of each thread
+   * @param language the language of the documents
+   * @param clearFeatures the clearFeatures option of the annotators
+   * @param workers the number of threads of the executor
+   * @param executor the worker threads, which may be shared with other
+   *          parallel annotators, see {@link #newExecutor(int)}
+   * @throws IOException if the models cannot be loaded
+   */
+  public ParallelAnnotator(final BatchAnnotator.AnnotatorFactory factory,
+      final String language, final String clearFeatures, final int workers,
+      final ExecutorService executor) throws IOException {
+    this.clearFeatures = clearFeatures;
+    this.workers = workers;
+    annotators = new ThreadLocal<Annotate>() {
+      @Override
+      protected Annotate initialValue() {
+        try {
+          return factory.create(language);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    // load the models now, so that errors are reported at start up
+    annotators.set(factory.create(language));
+    this.executor = executor;
+  }
+
+  /**
+   * Create the worker threads of one or more parallel annotators.
+   * @param workers the number of worker threads
+   * @return the worker threads
+   */
+  public static ExecutorService newExecutor(final int workers) {
+    return Executors.newFixedThreadPool(workers, task -> {
+      Thread thread = new Thread(task, "document-chunk");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Annotate a document, in parallel if it can be split.
+   * @param kaf the KAFDocument
+   */
+  public final void annotate(final KAFDocument kaf) {
+
+    TermIndex termIndex = TermIndex.of(kaf);
+    List<Integer> starts = getChunkStarts(termIndex);
+    if (starts.size() < 2) {
+      annotators.get().annotate(kaf);
+      return;
+    }
+    // the workers only read the sentences and the term index, never the
+    // document to which the opinions are added
+    List<List<WF>> sentences = kaf.getSentences();
+    Map<String, Term> terms = new HashMap<>();
+    for (Term term : kaf.getTerms()) {
+      terms.put(term.getId(), term);
+    }
+    Deadline deadline = Deadline.get();
+    List<Future<KAFDocument>> chunks = new ArrayList<>();
+    for (int i = 0; i < starts.size(); i++) {
+      int start = starts.get(i);
+      int end = i + 1 < starts.size() ? starts.get(i + 1) : termIndex.getNumSentences();
+      chunks.add(executor.submit(() -> {
+        Deadline.set(deadline);
+        try {
+          return annotateChunk(kaf, sentences, termIndex, start, end);
+        } finally {
+          Deadline.clear();
+        }
+      }));
+    }
+    int numSentences = termIndex.getNumSentences();
+    int i = 0;
+    try {
+      for (; i < chunks.size(); i++) {
+        Deadline.check(starts.get(i), numSentences);
+        addAnnotations(kaf, terms, getChunk(chunks.get(i), starts.get(i), numSentences));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while annotating the document", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Deadline.ExceededException) {
+        // report the sentences of the document rather than of the chunk
+        Deadline.check(starts.get(i), numSentences);
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<KAFDocument> chunk : chunks) {
+        chunk.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Wait for an annotated chunk no longer than the deadline of the request.
+   * @param chunk the annotation of the chunk
+   * @param start the first sentence of the chunk
+   * @param numSentences the number of sentences of the document
+   * @return the annotated chunk
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ExecutionException if the annotation of the chunk failed
+   */
+  private static KAFDocument getChunk(final Future<KAFDocument> chunk, final int start,
+      final int numSentences) throws InterruptedException, ExecutionException {
+    while (true) {
+      long remaining = Deadline.remainingNanos();
+      if (remaining == Long.MAX_VALUE) {
+        return chunk.get();
+      }
+      try {
+        return chunk.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        Deadline.check(start, numSentences);
+      }
+    }
+  }
+
+  /**
+   * Get the first sentence of every chunk of a document. The chunks start
+   * at segment boundaries and have about the same number of sentences.
+   * @param termIndex the term index of the document
+   * @return the indexes of the first sentences, a single one if the
+   * document cannot be split
+   */
+  private List<Integer> getChunkStarts(final TermIndex termIndex) {
+    int numSentences = termIndex.getNumSentences();
+    List<Integer> starts = new ArrayList<>();
+    boolean sentences = clearFeatures.equalsIgnoreCase("yes");
+    if (numSentences == 0 || !sentences && !clearFeatures.equalsIgnoreCase("docstart")) {
+      starts.add(0);
+      return starts;
+    }
+    int chunkSize = Math.max(1, (numSentences + workers * CHUNKS_PER_WORKER - 1)
+        / (workers * CHUNKS_PER_WORKER));
+    int next = 0;
+    for (int sent = 0; sent < numSentences; sent++) {
+      boolean segment = sentences || sent == 0
+          || termIndex.getTokens(sent)[0].startsWith("-DOCSTART-");
+      if (segment && sent >= next) {
+        starts.add(sent);
+        next = sent + chunkSize;
+      }
+    }
+    return starts;
+  }
+
+  /**
+   * Annotate some sentences of a document as a separate document.
+   * @param kaf the document
+   * @param sentences the word forms of the sentences of the document
+   * @param termIndex the term index of the document
+   * @param start the first sentence
+   * @param end the sentence after the last one
+   * @return the annotated chunk
+   */
+  private KAFDocument annotateChunk(final KAFDocument kaf, final List<List<WF>> sentences,
+      final TermIndex termIndex, final int start, final int end) {
+
+    KAFDocument chunk = new KAFDocument(kaf.getLang(), kaf.getVersion());
+    Map<String, WF> wfs = new HashMap<>();
+    Set<String> termIds = new HashSet<>();
+    for (int sent = start; sent < end; sent++) {
+      for (WF wf : sentences.get(sent)) {
+        wfs.put(wf.getId(), chunk.newWF(wf.getId(), wf.getOffset(), wf.getLength(),
+            wf.getForm(), wf.getSent()));
+      }
+      for (Term term : termIndex.getTerms(sent)) {
+        if (termIds.add(term.getId())) {
+          List<WF> span = new ArrayList<>();
+          for (WF wf : term.getWFs()) {
+            span.add(wfs.get(wf.getId()));
+          }
+          chunk.newTerm(term.getId(), term.getType(), term.getLemma(), term.getPos(),
+              KAFDocument.newWFSpan(span));
+        }
+      }
+    }
+    TermIndex chunkIndex = TermIndex.of(chunk);
+    for (int sent = start; sent < end; sent++) {
+      if (termIndex.isUpToDate(sent)) {
+        chunkIndex.markUpToDate(sent - start);
+      }
+    }
+    annotators.get().annotate(chunk);
+    return chunk;
+  }
+
+  /**
+   * Add the opinions and the term polarities of an annotated chunk to the
+   * document.
+   * @param kaf the document
+   * @param terms the terms of the document by id
+   * @param chunk the annotated chunk
+   */
+  private static void addAnnotations(final KAFDocument kaf, final Map<String, Term> terms,
+      final KAFDocument chunk) {
+    for (Opinion chunkOpinion : chunk.getOpinions()) {
+      copyOpinion(chunkOpinion, kaf.newOpinion(), terms);
+    }
+    // the polarities of a dictionary
+    for (Term chunkTerm : chunk.getTerms()) {
+      if (chunkTerm.hasSentiment()) {
+        terms.get(chunkTerm.getId()).setSentiment(chunkTerm.getSentiment());
+      }
+    }
+  }
+
+  /**
+   * Copy the holder, target and expression of an opinion to another one,
+   * with the terms of the same ids in the document of the copy.
+   * @param source the opinion to copy
+   * @param opinion the new opinion
+   * @param terms the terms of the document of the new opinion by id
+   */
+  static void copyOpinion(final Opinion source, final Opinion opinion,
+      final Map<String, Term> terms) {
+    if (source.hasOpinionHolder()) {
+      OpinionHolder sourceHolder = source.getOpinionHolder();
+      OpinionHolder holder = opinion.createOpinionHolder(getSpan(terms, sourceHolder.getSpan()));
+      if (sourceHolder.hasType()) {
+        holder.setType(sourceHolder.getType());
+      }
+    }
+    if (source.hasOpinionTarget()) {
+      opinion.createOpinionTarget(getSpan(terms, source.getOpinionTarget().getSpan()));
+    }
+    if (source.hasOpinionExpression()) {
+      OpinionExpression sourceExpression = source.getOpinionExpression();
+      OpinionExpression expression = opinion.createOpinionExpression(
+          getSpan(terms, sourceExpression.getSpan()));
+      if (sourceExpression.hasPolarity()) {
+        expression.setPolarity(sourceExpression.getPolarity());
+      }
+      if (sourceExpression.hasStrength()) {
+        expression.setStrength(sourceExpression.getStrength());
+      }
+      if (sourceExpression.hasSubjectivity()) {
+        expression.setSubjectivity(sourceExpression.getSubjectivity());
+      }
+      if (sourceExpression.hasSentimentSemanticType()) {
+        expression.setSentimentSemanticType(sourceExpression.getSentimentSemanticType());
+      }
+      if (sourceExpression.hasSentimentProductFeature()) {
+        expression.setSentimentProductFeature(sourceExpression.getSentimentProductFeature());
+      }
+    }
+  }
+
+  /**
+   * Get the span of the document terms with the ids of the terms of another
+   * span.
+   * @param terms the terms of the document by id
+   * @param sourceSpan the span to copy
+   * @return the span of document terms
+   */
+  private static Span<Term> getSpan(final Map<String, Term> terms, final Span<Term> sourceSpan) {
+    List<Term> spanTerms = new ArrayList<>();
+    for (Term sourceTerm : sourceSpan.getTargets()) {
+      spanTerms.add(terms.get(sourceTerm.getId()));
+    }
+    return KAFDocument.newTermSpan(spanTerms);
+  }
+
+  /**
+   * Output annotation as NAF.
+   * 
+   * @param kaf
+   *          the naf document
+   * @return the string containing the naf document
+   */
+  public final String annotateToNAF(KAFDocument kaf) {
+    return kaf.toString();
+  }
+
+}
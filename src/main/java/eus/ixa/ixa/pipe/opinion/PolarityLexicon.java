@@ -0,0 +1,281 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Polarity lexicon compiled into an open addressing hash table. The table
+ * can be saved to a binary file which is memory-mapped when loaded, so that
+ * large lexicons are neither parsed nor copied into the heap. Lexicons are
+ * loaded once per path and shared by every annotator, lookups are read-only
+ * and thread-safe.
+ *
+ * The text format is the one of the ixa-pipe-ml polarity dictionaries, one
+ * entry per line: the word, a tab and its polarity.
+ *
+ * @author ragerri
+ * @version 2018-05-03
+ *
+ */
+public class PolarityLexicon {
+
+  /**
+   * The tag returned for words not in the lexicon.
+   */
+  public static final String NO_POLARITY = "O";
+  /**
+   * Magic number identifying a compiled lexicon, "IXAPOL01".
+   */
+  private static final long MAGIC = 0x495841504f4c3031L;
+  /**
+   * The size in bytes of a slot of the hash table: hash, key offset and
+   * polarity index.
+   */
+  private static final int SLOT_SIZE = 12;
+  /**
+   * The lexicons already loaded, by path.
+   */
+  private static final ConcurrentHashMap<String, PolarityLexicon> lexicons = new ConcurrentHashMap<>();
+
+  /**
+   * The compiled lexicon, mapped or in the heap.
+   */
+  private final ByteBuffer buffer;
+  /**
+   * The polarity tags.
+   */
+  private final String[] polarities;
+  /**
+   * The number of slots of the hash table, a power of two.
+   */
+  private final int tableSize;
+  /**
+   * The position of the hash table in the buffer.
+   */
+  private final int tableStart;
+
+  private PolarityLexicon(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getLong(0) != MAGIC) {
+      throw new IOException("Not a compiled polarity lexicon");
+    }
+    int numPolarities = buffer.getInt(8);
+    polarities = new String[numPolarities];
+    int position = 12;
+    for (int i = 0; i < numPolarities; i++) {
+      int length = buffer.getShort(position);
+      position += 2;
+      char[] polarity = new char[length];
+      for (int j = 0; j < length; j++) {
+        polarity[j] = buffer.getChar(position);
+        position += 2;
+      }
+      polarities[i] = new String(polarity).intern();
+    }
+    tableSize = buffer.getInt(position);
+    tableStart = position + 4;
+  }
+
+  /**
+   * Get the lexicon stored in a file, either a text lexicon or a compiled one.
+   * Every lexicon is loaded only once.
+   * @param path the path to the lexicon
+   * @return the lexicon
+   * @throws IOException if the lexicon cannot be read
+   */
+  public static PolarityLexicon getLexicon(String path) throws IOException {
+    PolarityLexicon lexicon = lexicons.get(path);
+    if (lexicon == null) {
+      synchronized (lexicons) {
+        lexicon = lexicons.get(path);
+        if (lexicon == null) {
+          lexicon = load(new File(path));
+          lexicons.put(path, lexicon);
+        }
+      }
+    }
+    return lexicon;
+  }
+
+  private static PolarityLexicon load(File file) throws IOException {
+    if (isCompiled(file)) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+          FileChannel channel = raf.getChannel()) {
+        return new PolarityLexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      return new PolarityLexicon(ByteBuffer.wrap(compile(in)));
+    }
+  }
+
+  private static boolean isCompiled(File file) throws IOException {
+    if (file.length() < 8) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readLong() == MAGIC;
+    }
+  }
+
+  /**
+   * Compile a text lexicon into a binary file that can be memory-mapped.
+   * @param textLexicon the text lexicon
+   * @param output the compiled lexicon
+   * @throws IOException if io problems
+   */
+  public static void compile(InputStream textLexicon, File output) throws IOException {
+    byte[] compiled = compile(textLexicon);
+    try (OutputStream out = new FileOutputStream(output)) {
+      out.write(compiled);
+    }
+  }
+
+  private static byte[] compile(InputStream textLexicon) throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    BufferedReader breader = new BufferedReader(new InputStreamReader(textLexicon, StandardCharsets.UTF_8));
+    String line;
+    while ((line = breader.readLine()) != null) {
+      int tab = line.indexOf('\t');
+      if (tab > 0) {
+        entries.put(line.substring(0, tab), line.substring(tab + 1).trim());
+      }
+    }
+    List<String> polarityList = new ArrayList<>();
+    for (String polarity : entries.values()) {
+      if (!polarityList.contains(polarity)) {
+        polarityList.add(polarity);
+      }
+    }
+    int tableSize = Integer.highestOneBit(Math.max(entries.size(), 1) * 2 - 1) << 1;
+    int headerSize = 12 + 4;
+    for (String polarity : polarityList) {
+      headerSize += 2 + 2 * polarity.length();
+    }
+    int keysSize = 0;
+    for (String key : entries.keySet()) {
+      keysSize += 2 + 2 * key.length();
+    }
+    int tableStart = headerSize;
+    int keysStart = tableStart + tableSize * SLOT_SIZE;
+    ByteBuffer buffer = ByteBuffer.allocate(keysStart + keysSize);
+    buffer.putLong(MAGIC);
+    buffer.putInt(polarityList.size());
+    for (String polarity : polarityList) {
+      putString(buffer, polarity);
+    }
+    buffer.putInt(tableSize);
+    for (int slot = 0; slot < tableSize; slot++) {
+      buffer.putInt(tableStart + slot * SLOT_SIZE + 4, -1);
+    }
+    buffer.position(keysStart);
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      String key = entry.getKey();
+      int hash = key.hashCode();
+      int slot = hash & (tableSize - 1);
+      while (buffer.getInt(tableStart + slot * SLOT_SIZE + 4) != -1) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+      int slotStart = tableStart + slot * SLOT_SIZE;
+      buffer.putInt(slotStart, hash);
+      buffer.putInt(slotStart + 4, buffer.position());
+      buffer.putInt(slotStart + 8, polarityList.indexOf(entry.getValue()));
+      putString(buffer, key);
+    }
+    return buffer.array();
+  }
+
+  private static void putString(ByteBuffer buffer, String string) {
+    buffer.putShort((short) string.length());
+    for (int i = 0; i < string.length(); i++) {
+      buffer.putChar(string.charAt(i));
+    }
+  }
+
+  /**
+   * Look up the polarity of a word.
+   * @param word the word
+   * @return the polarity or null if the word is not in the lexicon
+   */
+  public String lookup(String word) {
+    if (word == null) {
+      return null;
+    }
+    int hash = word.hashCode();
+    int slot = hash & (tableSize - 1);
+    while (true) {
+      int slotStart = tableStart + slot * SLOT_SIZE;
+      int keyOffset = buffer.getInt(slotStart + 4);
+      if (keyOffset == -1) {
+        return null;
+      }
+      if (buffer.getInt(slotStart) == hash && keyEquals(keyOffset, word)) {
+        return polarities[buffer.getInt(slotStart + 8)];
+      }
+      slot = (slot + 1) & (tableSize - 1);
+    }
+  }
+
+  private boolean keyEquals(int keyOffset, String word) {
+    int length = buffer.getShort(keyOffset);
+    if (length != word.length()) {
+      return false;
+    }
+    int position = keyOffset + 2;
+    for (int i = 0; i < length; i++) {
+      if (buffer.getChar(position) != word.charAt(i)) {
+        return false;
+      }
+      position += 2;
+    }
+    return true;
+  }
+
+  /**
+   * Tag the polarity of a term looking up first its form and then its lemma.
+   * @param form the word form
+   * @param lemma the lemma, it can be null
+   * @return the polarity or {@link #NO_POLARITY}
+   */
+  public String tag(String form, String lemma) {
+    String polarity = lookup(form);
+    if ((polarity == null || polarity.equals(NO_POLARITY)) && lemma != null
+        && !lemma.equals(form)) {
+      polarity = lookup(lemma);
+    }
+    return polarity == null ? NO_POLARITY : polarity;
+  }
+
+}
@@ -0,0 +1,676 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking network layer of the {@link OpinionTaggerServer}. An acceptor
+ * hands every new connection to one of several reactor threads, each one
+ * with its own selector, which read the requests of the naf or framed
+ * protocols without blocking and without holding any worker. Only documents
+ * which have been fully received are annotated by the workers, and the
+ * responses are written back by the reactors as the clients read them, so
+ * that thousands of idle or slow connections need only a handful of threads.
+ *
+ * The requests of a connection are annotated one at a time and answered in
+ * order. A connection with too many requests or responses waiting is not
+ * read until they are processed, and a request which is still being received
+ * after the deadline gets an error and its connection is closed.
+ *
+ * @author ragerri
+ * @version 2018-05-20
+ *
+ */
+final class ReactorServer {
+
+  /**
+   * The maximum number of requests and responses waiting in a connection
+   * before it stops being read.
+   */
+  private static final int MAX_PENDING = 16;
+  /**
+   * The size of the read buffer of every reactor.
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final OpinionTaggerServer server;
+  private final ExecutorService workers;
+  /**
+   * Whether the protocol is framed, otherwise naf.
+   */
+  private final boolean framed;
+  private final long maxDocumentSize;
+  /**
+   * The maximum time to receive a request, 0 for no limit.
+   */
+  private final long readTimeoutNanos;
+  private final ServerSocketChannel serverChannel;
+  private final Selector acceptSelector;
+  private final Reactor[] reactors;
+
+  /**
+   * Listen to a port and start the reactors.
+   * @param server the server annotating the documents
+   * @param workers the workers annotating the documents
+   * @param framed whether the protocol is framed, otherwise naf
+   * @param reactors the number of reactor threads
+   * @param maxDocumentSize the maximum size of a document, 0 for no limit
+   * @param readTimeout the maximum time in milliseconds to receive a request,
+   *          0 for no limit
+   * @param port the port
+   * @throws IOException if the port cannot be used
+   */
+  ReactorServer(OpinionTaggerServer server, ExecutorService workers, boolean framed,
+      int reactors, long maxDocumentSize, long readTimeout, int port) throws IOException {
+    this.server = server;
+    this.workers = workers;
+    this.framed = framed;
+    this.maxDocumentSize = maxDocumentSize;
+    this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+    serverChannel = ServerSocketChannel.open();
+    // a long backlog, as many clients may connect at the same time
+    serverChannel.bind(new InetSocketAddress(port), 1024);
+    serverChannel.configureBlocking(false);
+    acceptSelector = Selector.open();
+    serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+    this.reactors = new Reactor[reactors];
+    for (int i = 0; i < reactors; i++) {
+      this.reactors[i] = new Reactor();
+      Thread thread = new Thread(this.reactors[i], "reactor-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Accept connections and hand them to the reactors in turn. It does not
+   * return unless the acceptor fails.
+   * @throws IOException if the connections cannot be accepted
+   */
+  void run() throws IOException {
+    int next = 0;
+    try {
+      while (true) {
+        acceptSelector.select();
+        acceptSelector.selectedKeys().clear();
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          reactors[next].register(channel);
+          next = (next + 1) % reactors.length;
+        }
+      }
+    } finally {
+      acceptSelector.close();
+      serverChannel.close();
+    }
+  }
+
+  /**
+   * A thread with a selector reading the requests and writing the responses
+   * of its connections.
+   */
+  private final class Reactor implements Runnable {
+
+    private final Selector selector;
+    /**
+     * The buffer every connection of the reactor is read into.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    /**
+     * Tasks of other threads to run in the reactor.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private long lastTimeoutCheck = System.nanoTime();
+
+    private Reactor() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Run a task in the reactor thread.
+     * @param task the task
+     */
+    private void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    /**
+     * Start serving a connection.
+     * @param channel the connection
+     */
+    private void register(SocketChannel channel) {
+      execute(() -> {
+        try {
+          Connection connection = new Connection(this, channel);
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+          closeQuietly(channel);
+        }
+      });
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select(1000);
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            try {
+              task.run();
+            } catch (RuntimeException e) {
+              e.printStackTrace();
+            }
+          }
+          // a task may have closed a connection whose key is selected
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+              connection.handle(key);
+            } catch (RuntimeException e) {
+              // one connection must not stop the reactor of the others
+              e.printStackTrace();
+              connection.close();
+            }
+          }
+          if (readTimeoutNanos > 0 && System.nanoTime() - lastTimeoutCheck > TimeUnit.SECONDS.toNanos(1)) {
+            lastTimeoutCheck = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+              Connection connection = (Connection) key.attachment();
+              try {
+                connection.checkTimeout(lastTimeoutCheck);
+              } catch (RuntimeException e) {
+                e.printStackTrace();
+                connection.close();
+              }
+            }
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * A complete request, or the error to answer instead.
+   */
+  private static final class Request {
+    private final int id;
+    private final byte[] document;
+    private final int length;
+    private final String error;
+    /**
+     * When the request started to arrive.
+     */
+    private final long start;
+
+    private Request(int id, byte[] document, int length, long start) {
+      this.id = id;
+      this.document = document;
+      this.length = length;
+      this.error = null;
+      this.start = start;
+    }
+
+    private Request(int id, String error, long start) {
+      this.id = id;
+      this.document = null;
+      this.length = 0;
+      this.error = error;
+      this.start = start;
+    }
+  }
+
+  /**
+   * A connection and the state of its requests. It is only accessed by its
+   * reactor thread; the workers hand their responses to the reactor.
+   */
+  private final class Connection {
+
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    /**
+     * The requests received and not yet annotated.
+     */
+    private final ArrayDeque<Request> received = new ArrayDeque<>();
+    /**
+     * The responses not yet written.
+     */
+    private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+    /**
+     * Whether a request is being annotated by a worker.
+     */
+    private boolean annotating;
+    /**
+     * Whether no more requests are read from the connection.
+     */
+    private boolean inputDone;
+    private boolean closeWhenWritten;
+    private boolean closed;
+    /**
+     * When the request being received started to arrive, 0 if none.
+     */
+    private long requestStart;
+    /**
+     * The header of the request being received, framed protocol.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+    private int requestId;
+    /**
+     * The bytes of a too large document still to skip, framed protocol.
+     */
+    private long skip;
+    /**
+     * The document being received and its size.
+     */
+    private byte[] document;
+    private int documentSize;
+    /**
+     * The start of the current line of the document, naf protocol.
+     */
+    private int lineStart;
+
+    private Connection(Reactor reactor, SocketChannel channel) {
+      this.reactor = reactor;
+      this.channel = channel;
+      if (!framed) {
+        // the document is expected right away, as in the blocking server
+        requestStart = System.nanoTime();
+      }
+    }
+
+    /**
+     * Read or write the connection when it is ready.
+     * @param key the key of the connection
+     */
+    private void handle(SelectionKey key) {
+      if (!key.isValid()) {
+        return;
+      }
+      try {
+        if (key.isReadable() && !inputDone) {
+          read();
+        }
+        if (!closed && key.isWritable()) {
+          write();
+        }
+        dispatch();
+        write();
+        updateInterest();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    private void read() throws IOException {
+      ByteBuffer in = reactor.readBuffer;
+      in.clear();
+      int n = channel.read(in);
+      if (n < 0) {
+        endOfInput();
+        return;
+      }
+      in.flip();
+      if (framed) {
+        readFrames(in);
+      } else {
+        readDocument(in);
+      }
+    }
+
+    /**
+     * Read the framed requests in the buffer.
+     * @param in the buffer
+     * @throws IOException if a frame is not valid
+     */
+    private void readFrames(ByteBuffer in) throws IOException {
+      while (in.hasRemaining()) {
+        if (requestStart == 0) {
+          requestStart = System.nanoTime();
+        }
+        if (skip > 0) {
+          int n = (int) Math.min(skip, in.remaining());
+          in.position(in.position() + n);
+          skip -= n;
+          if (skip == 0) {
+            requestStart = 0;
+          }
+          continue;
+        }
+        if (document == null) {
+          while (header.hasRemaining() && in.hasRemaining()) {
+            header.put(in.get());
+          }
+          if (header.hasRemaining()) {
+            return;
+          }
+          requestId = header.getInt(0);
+          int length = header.getInt(4);
+          header.clear();
+          if (length < 0) {
+            throw new IOException("Invalid frame length " + length);
+          }
+          if (maxDocumentSize > 0 && length > maxDocumentSize) {
+            received.add(new Request(requestId,
+                new LimitedInputStream.TooLargeException(maxDocumentSize).getMessage(), requestStart));
+            skip = length;
+            continue;
+          }
+          document = new byte[length];
+          documentSize = 0;
+        }
+        int n = Math.min(document.length - documentSize, in.remaining());
+        in.get(document, documentSize, n);
+        documentSize += n;
+        if (documentSize == document.length) {
+          received.add(new Request(requestId, document, documentSize, requestStart));
+          document = null;
+          requestStart = 0;
+        }
+      }
+    }
+
+    /**
+     * Read the document of the naf protocol in the buffer, which ends with a
+     * {@code </NAF>} or {@code <ENDOFDOCUMENT>} line.
+     * @param in the buffer
+     */
+    private void readDocument(ByteBuffer in) {
+      if (requestStart == 0) {
+        requestStart = System.nanoTime();
+      }
+      int n = in.remaining();
+      if (maxDocumentSize > 0 && documentSize + n > maxDocumentSize) {
+        endRequests(new LimitedInputStream.TooLargeException(maxDocumentSize).getMessage());
+        return;
+      }
+      if (document == null) {
+        document = new byte[Math.max(8192, n)];
+      } else if (documentSize + n > document.length) {
+        document = Arrays.copyOf(document, Math.max(document.length * 2, documentSize + n));
+      }
+      in.get(document, documentSize, n);
+      int from = documentSize;
+      documentSize += n;
+      for (int i = from; i < documentSize; i++) {
+        if (document[i] == '\n') {
+          int lineEnd = i > lineStart && document[i - 1] == '\r' ? i - 1 : i;
+          if (isLine(lineStart, lineEnd, BatchAnnotator.END_OF_DOCUMENT)) {
+            endDocument(lineStart);
+            return;
+          } else if (isLine(lineStart, lineEnd, "</NAF>")) {
+            endDocument(i + 1);
+            return;
+          }
+          lineStart = i + 1;
+        }
+      }
+    }
+
+    private boolean isLine(int start, int end, String line) {
+      if (end - start != line.length()) {
+        return false;
+      }
+      for (int i = 0; i < line.length(); i++) {
+        if (document[start + i] != line.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * The document of the naf protocol has been received.
+     * @param length the length of the document
+     */
+    private void endDocument(int length) {
+      received.add(new Request(0, document, length, requestStart));
+      document = null;
+      requestStart = 0;
+      inputDone = true;
+    }
+
+    /**
+     * The client has closed its side of the connection.
+     */
+    private void endOfInput() {
+      if (!framed && document != null
+          && new String(document, 0, documentSize, StandardCharsets.UTF_8).trim().length() > 0) {
+        endDocument(documentSize);
+      }
+      document = null;
+      requestStart = 0;
+      inputDone = true;
+    }
+
+    /**
+     * Stop reading requests, answering an error after those already
+     * received, and close the connection.
+     * @param error the error message
+     */
+    private void endRequests(String error) {
+      received.add(new Request(FramedProtocol.NO_REQUEST, error,
+          requestStart != 0 ? requestStart : System.nanoTime()));
+      document = null;
+      requestStart = 0;
+      inputDone = true;
+    }
+
+    /**
+     * Answer an error if the request being received has taken too long.
+     * @param now the current time
+     */
+    private void checkTimeout(long now) {
+      if (!closed && requestStart != 0 && now - requestStart > readTimeoutNanos) {
+        endRequests("Timed out reading the document");
+        try {
+          dispatch();
+          write();
+          updateInterest();
+        } catch (IOException e) {
+          close();
+        }
+      }
+    }
+
+    /**
+     * Hand the next request to a worker, unless one is being annotated.
+     */
+    private void dispatch() {
+      while (!closed && !annotating && !received.isEmpty()) {
+        Request request = received.poll();
+        if (request.error != null) {
+          responses.add(errorResponse(request.id, FramedProtocol.ERROR, request.error));
+          Metrics.request(request.start, true);
+          continue;
+        }
+        annotating = true;
+        try {
+          workers.execute(() -> annotate(request));
+        } catch (RejectedExecutionException e) {
+          annotating = false;
+          Metrics.rejected();
+          received.clear();
+          inputDone = true;
+          closeWhenWritten = true;
+          responses.add(errorResponse(FramedProtocol.NO_REQUEST, FramedProtocol.BUSY,
+              "Server busy, try again later"));
+        }
+      }
+    }
+
+    /**
+     * Annotate a request and hand the response to the reactor. Runs in a
+     * worker thread.
+     * @param request the request
+     */
+    private void annotate(Request request) {
+      ResponseBuffer response = new ResponseBuffer(framed);
+      int status;
+      try {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response, StandardCharsets.UTF_8));
+        // the request was received within its own deadline, annotating it
+        // has the same time again
+        Deadline.start(TimeUnit.NANOSECONDS.toMillis(readTimeoutNanos));
+        status = server.annotate(new ByteArrayInputStream(request.document, 0, request.length), writer);
+        writer.flush();
+      } catch (IOException e) {
+        response = ResponseBuffer.of(framed, "-> ERROR: Input data not correct!!");
+        status = FramedProtocol.ERROR;
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        response = ResponseBuffer.of(framed, "-> ERROR: Annotation failed!!");
+        status = FramedProtocol.ERROR;
+      }
+      ByteBuffer buffer;
+      if (framed) {
+        buffer = response.toFrame(request.id, status);
+      } else if (status == FramedProtocol.ERROR) {
+        buffer = errorResponse(request.id, status, null, response.toText());
+      } else {
+        buffer = response.toBuffer();
+      }
+      Metrics.request(request.start, status == FramedProtocol.ERROR);
+      reactor.execute(() -> annotated(buffer));
+    }
+
+    /**
+     * Queue the response of the request annotated by a worker.
+     * @param response the response
+     */
+    private void annotated(ByteBuffer response) {
+      if (closed) {
+        return;
+      }
+      annotating = false;
+      responses.add(response);
+      try {
+        dispatch();
+        write();
+        updateInterest();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Write the waiting responses until the client stops reading, and close
+     * the connection once every request has been answered.
+     * @throws IOException if io problems
+     */
+    private void write() throws IOException {
+      if (closed) {
+        return;
+      }
+      while (!responses.isEmpty()) {
+        ByteBuffer response = responses.peek();
+        channel.write(response);
+        if (response.hasRemaining()) {
+          return;
+        }
+        responses.poll();
+      }
+      if (closeWhenWritten || inputDone && !annotating && received.isEmpty()) {
+        close();
+      }
+    }
+
+    private void updateInterest() {
+      if (closed) {
+        return;
+      }
+      int ops = 0;
+      if (!inputDone && received.size() + responses.size() < MAX_PENDING) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (!responses.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+    }
+
+    private void close() {
+      if (!closed) {
+        closed = true;
+        if (key != null) {
+          key.cancel();
+        }
+        closeQuietly(channel);
+      }
+    }
+
+    private ByteBuffer errorResponse(int id, int status, String error) {
+      return errorResponse(id, status, error, null);
+    }
+
+    /**
+     * Build an error response.
+     * @param id the id of the request
+     * @param status the status of the response
+     * @param error the error, or null
+     * @param message the whole message if there is no error
+     * @return the response
+     */
+    private ByteBuffer errorResponse(int id, int status, String error, String message) {
+      if (message == null) {
+        message = "-> ERROR: " + error + "!!";
+      }
+      if (framed) {
+        return ResponseBuffer.of(true, message).toFrame(id, status);
+      }
+      return ResponseBuffer.of(false, "\n" + message + "\n").toBuffer();
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Whether the server is ready for traffic: its models are loaded, it has
+ * been warmed up and it is listening. The state is answered by the
+ * {@code /ready} path of the metrics endpoint (200 once ready, 503 before),
+ * exposed through JMX and, when a ready file is given, signalled by creating
+ * that file, which is deleted again when the process exits.
+ *
+ * @author ragerri
+ * @version 2018-05-19
+ *
+ */
+public final class Readiness {
+
+  private static volatile boolean ready = false;
+
+  private Readiness() {
+  }
+
+  /**
+   * Mark the server as starting, removing the ready file left by a previous
+   * process.
+   * @param readyFile the path of the ready file, null for none
+   * @throws IOException if the file cannot be removed
+   */
+  public static void starting(final String readyFile) throws IOException {
+    ready = false;
+    if (readyFile != null) {
+      Files.deleteIfExists(new File(readyFile).toPath());
+    }
+  }
+
+  /**
+   * Mark the server as ready, creating the ready file.
+   * @param readyFile the path of the ready file, null for none
+   * @param description the content of the ready file, such as the port
+   * @throws IOException if the file cannot be written
+   */
+  public static void ready(final String readyFile, final String description) throws IOException {
+    if (readyFile != null) {
+      File file = new File(readyFile);
+      // written aside and moved, so that the file never appears half written
+      File temporary = new File(file.getPath() + ".tmp");
+      Files.write(temporary.toPath(), (description + "\n").getBytes(StandardCharsets.UTF_8));
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      file.deleteOnExit();
+    }
+    ready = true;
+    System.out.println("-> Ready: " + description);
+  }
+
+  /**
+   * Whether the server is ready.
+   * @return true once ready
+   */
+  public static boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Answer the readiness in the {@code /ready} path of a server.
+   * @param server the HTTP server
+   */
+  static void addEndpoint(final HttpServer server) {
+    server.createContext("/ready", Readiness::serveStatus);
+  }
+
+  private static void serveStatus(HttpExchange exchange) throws IOException {
+    byte[] status = (ready ? "ready\n" : "starting\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(ready ? 200 : 503, status.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(status);
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffer of a response of the servers, which is written to the connection
+ * without copying it into a new array. Framed responses may leave room for
+ * the header before the payload, so that the whole frame is a single buffer.
+ *
+ * @author ragerri
+ * @version 2018-05-20
+ *
+ */
+final class ResponseBuffer extends ByteArrayOutputStream {
+
+  /**
+   * The length of the header of a framed response.
+   */
+  static final int FRAME_HEADER = 12;
+
+  /**
+   * The bytes reserved for the header before the payload.
+   */
+  private final int header;
+
+  /**
+   * Construct a buffer of the payload only.
+   */
+  ResponseBuffer() {
+    this(false);
+  }
+
+  /**
+   * Construct a buffer.
+   * @param withHeader whether to leave room for the header of a framed
+   *          response before the payload
+   */
+  ResponseBuffer(boolean withHeader) {
+    super(8192);
+    header = withHeader ? FRAME_HEADER : 0;
+    count = header;
+  }
+
+  /**
+   * Construct a buffer with a message.
+   * @param withHeader whether to leave room for the header of a framed
+   *          response before the payload
+   * @param message the message
+   * @return the buffer
+   */
+  static ResponseBuffer of(boolean withHeader, String message) {
+    ResponseBuffer response = new ResponseBuffer(withHeader);
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    response.write(bytes, 0, bytes.length);
+    return response;
+  }
+
+  @Override
+  public synchronized void reset() {
+    count = header;
+    // do not keep the buffer of an exceptionally large document
+    if (buf.length > (1 << 24)) {
+      buf = new byte[8192];
+    }
+  }
+
+  /**
+   * Get the payload, which must have been written without room for the
+   * header.
+   * @return the buffer wrapping the payload
+   */
+  ByteBuffer toBuffer() {
+    return ByteBuffer.wrap(buf, header, count - header);
+  }
+
+  /**
+   * Get the response frame, filling the header in the room left for it.
+   * @param id the id of the request being answered
+   * @param status the status code of the response
+   * @return the buffer wrapping the frame
+   */
+  ByteBuffer toFrame(int id, int status) {
+    ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+    frame.putInt(0, id).putInt(4, status).putInt(8, count - header);
+    return frame;
+  }
+
+  /**
+   * Decode the payload.
+   * @return the text of the payload
+   */
+  String toText() {
+    return new String(buf, header, count - header, StandardCharsets.UTF_8);
+  }
+
+}
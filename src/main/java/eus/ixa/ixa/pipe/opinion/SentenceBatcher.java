@@ -0,0 +1,287 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import eus.ixa.ixa.pipe.ml.sequence.SequenceLabel;
+import ixa.kaflib.KAFDocument;
+
+/**
+ * ABSA annotator gathering the sentences of the documents being annotated
+ * concurrently by the server into batches, which are run through the target
+ * labeler and the polarity classifier in one go. A batch is closed when it
+ * reaches the batch size or when its first sentence has waited the maximum
+ * delay; each batch is annotated by one of several runner threads, each
+ * one with its own labeler and classifier, and the results are given back
+ * to the document of every sentence.
+ *
+ * Sentences of different documents are mixed in a batch, so the adaptive
+ * features must be cleared after every sentence (clearFeatures yes).
+ *
+ * @author ragerri
+ * @version 2018-05-16
+ *
+ */
+public class SentenceBatcher implements Annotate {
+
+  /**
+   * The sentences waiting to be batched.
+   */
+  private final BlockingQueue<Sentence> pending = new LinkedBlockingQueue<>();
+  /**
+   * The maximum number of sentences of a batch.
+   */
+  private final int batchSize;
+  /**
+   * The maximum time the first sentence of a batch waits for others.
+   */
+  private final long maxDelayNanos;
+  /**
+   * The threads annotating the batches.
+   */
+  private final ExecutorService runners;
+  /**
+   * The labeler and classifier of each runner thread.
+   */
+  private final ThreadLocal<Models> models;
+
+  /**
+   * A sentence waiting to be annotated and its result.
+   */
+  private static final class Sentence {
+    private final String[] tokens;
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+    private Sentence(String[] tokens) {
+      this.tokens = tokens;
+    }
+  }
+
+  /**
+   * The targets of a sentence and its polarity, null if it has no targets.
+   */
+  private static final class Result {
+    private final List<SequenceLabel> names;
+    private final String polarity;
+
+    private Result(List<SequenceLabel> names, String polarity) {
+      this.names = names;
+      this.polarity = polarity;
+    }
+  }
+
+  /**
+   * The models of a runner thread and their version.
+   */
+  private static final class Models {
+    private final ModelRegistry.Labeler oteExtractor;
+    private final ModelRegistry.Classifier polTagger;
+    private final long generation;
+
+    private Models(Properties oteProperties, Properties polProperties) throws IOException {
+      this.generation = ModelRegistry.getGeneration();
+      this.oteExtractor = ModelRegistry.newLabeler(oteProperties);
+      this.polTagger = ModelRegistry.newClassifier(polProperties);
+    }
+  }
+
+  /**
+   * Construct a batcher and start its threads.
+   * @param oteProperties the properties of the target labeler
+   * @param polProperties the properties of the polarity classifier
+   * @param batchSize the maximum number of sentences of a batch
+   * @param maxDelayMillis the maximum time a sentence waits for a batch
+   * @param threads the number of threads annotating batches
+   * @throws IOException if the models cannot be loaded
+   */
+  public SentenceBatcher(final Properties oteProperties, final Properties polProperties,
+      final int batchSize, final long maxDelayMillis, final int threads) throws IOException {
+    if (!oteProperties.getProperty("clearFeatures").equalsIgnoreCase("yes")) {
+      throw new IllegalArgumentException(
+          "Batching sentences of several documents requires clearing the features every sentence");
+    }
+    this.batchSize = batchSize;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    // load the models now, so that errors are reported at start up
+    new Models(oteProperties, polProperties);
+    models = new ThreadLocal<Models>() {
+      @Override
+      protected Models initialValue() {
+        try {
+          return new Models(oteProperties, polProperties);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    runners = Executors.newFixedThreadPool(threads, task -> {
+      Thread thread = new Thread(task, "sentence-batch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    Thread collector = new Thread(this::collect, "sentence-batcher");
+    collector.setDaemon(true);
+    collector.start();
+  }
+
+  /**
+   * Gather the waiting sentences into batches and hand them to the runners.
+   */
+  private void collect() {
+    try {
+      while (true) {
+        List<Sentence> batch = new ArrayList<>(batchSize);
+        batch.add(pending.take());
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < batchSize) {
+          if (pending.drainTo(batch, batchSize - batch.size()) > 0) {
+            continue;
+          }
+          long wait = deadline - System.nanoTime();
+          Sentence next = wait > 0 ? pending.poll(wait, TimeUnit.NANOSECONDS) : null;
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        runners.execute(() -> annotateBatch(batch));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Annotate a batch of sentences. Runs in a runner thread. Sentences
+   * already cancelled, because their document was aborted, are skipped.
+   * @param batch the sentences
+   */
+  private void annotateBatch(List<Sentence> batch) {
+    Models current = models.get();
+    if (current.generation != ModelRegistry.getGeneration()) {
+      // a model file changed, start using the new version
+      models.remove();
+      current = models.get();
+    }
+    for (Sentence sentence : batch) {
+      if (sentence.result.isDone()) {
+        continue;
+      }
+      try {
+        List<SequenceLabel> names = current.oteExtractor.getSequences(sentence.tokens);
+        String polarity = names.isEmpty() ? null : current.polTagger.classify(sentence.tokens);
+        sentence.result.complete(new Result(names, polarity));
+      } catch (RuntimeException e) {
+        sentence.result.completeExceptionally(e);
+      } finally {
+        current.oteExtractor.clearAdaptiveData();
+        current.polTagger.clearFeatureData();
+      }
+    }
+  }
+
+  /**
+   * Annotate aspects, their targets and polarities, sending every sentence
+   * to the batches and waiting for their results no longer than the
+   * deadline of the request. If the document is aborted, its sentences still
+   * waiting are cancelled so that the runners do not annotate them.
+   * @param kaf the KAFDocument
+   */
+  public final void annotate(final KAFDocument kaf) {
+    TermIndex termIndex = TermIndex.of(kaf);
+    int numSentences = termIndex.getNumSentences();
+    List<Sentence> sentences = new ArrayList<>(numSentences);
+    for (int sent = 0; sent < numSentences; sent++) {
+      if (termIndex.isUpToDate(sent)) {
+        sentences.add(null);
+        continue;
+      }
+      Sentence sentence = new Sentence(termIndex.getTokens(sent));
+      sentences.add(sentence);
+      pending.add(sentence);
+    }
+    try {
+      for (int sent = 0; sent < numSentences; sent++) {
+        if (sentences.get(sent) == null) {
+          continue;
+        }
+        Result result = getResult(sentences.get(sent), sent, numSentences);
+        if (!result.names.isEmpty()) {
+          AnnotateAbsa.addOpinions(kaf, termIndex, sent, result.names, result.polarity);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while annotating", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Sentence sentence : sentences) {
+        if (sentence != null) {
+          sentence.result.cancel(false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait for the result of a sentence until the deadline of the request.
+   * @param sentence the sentence
+   * @param sent the index of the sentence
+   * @param numSentences the number of sentences of the document
+   * @return the result
+   * @throws Deadline.ExceededException if the deadline expires first
+   */
+  private static Result getResult(final Sentence sentence, final int sent,
+      final int numSentences) throws InterruptedException, ExecutionException {
+    while (true) {
+      Deadline.check(sent, numSentences);
+      try {
+        return sentence.result.get(Math.max(0, Deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        // check the deadline again
+      }
+    }
+  }
+
+  /**
+   * Output annotation as NAF.
+   *
+   * @param kaf
+   *          the naf document
+   * @return the string containing the naf document
+   */
+  public final String annotateToNAF(KAFDocument kaf) {
+    return kaf.toString();
+  }
+
+}
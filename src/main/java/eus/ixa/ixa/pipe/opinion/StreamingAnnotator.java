@@ -0,0 +1,753 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.escape.Escaper;
+import com.google.common.xml.XmlEscapers;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Opinion;
+import ixa.kaflib.Opinion.OpinionExpression;
+import ixa.kaflib.Opinion.OpinionHolder;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+/**
+ * Annotates NAF documents too large to be held in memory. Instead of
+ * building the {@link KAFDocument}, the document is read twice with a pull
+ * parser: one reader goes through the text layer sentence by sentence while
+ * the other copies the document to the output and, in the term layer, hands
+ * over the terms of every sentence. Each sentence is annotated as a document
+ * of its own and its opinions are spooled to a temporary file, which is
+ * copied as the opinion layer at the end of the document, so the heap used
+ * is bounded by the largest sentence.
+ *
+ * The terms must follow the order of their word forms, as kaflib writes
+ * them, and an existing opinion layer is replaced. As every sentence is a
+ * document, the adaptive features are cleared every sentence, and term
+ * polarities from a dictionary cannot be added, as the terms are already
+ * written when their sentence is annotated.
+ *
+ * @author ragerri
+ * @version 2018-05-18
+ *
+ */
+public class StreamingAnnotator {
+
+  private static final Escaper ATTRIBUTE_ESCAPER = XmlEscapers.xmlAttributeEscaper();
+  private static final Escaper CONTENT_ESCAPER = XmlEscapers.xmlContentEscaper();
+
+  /**
+   * The factory of the annotator.
+   */
+  private final BatchAnnotator.AnnotatorFactory factory;
+  /**
+   * The language required by the user, null to take it from the document.
+   */
+  private final String language;
+  /**
+   * The name of the linguistic processor added to the document.
+   */
+  private final String processorName;
+  /**
+   * The version of the linguistic processor added to the document.
+   */
+  private final String processorVersion;
+  /**
+   * The output format: naf, tabulated or jsonl.
+   */
+  private String outputFormat = "naf";
+  private final XMLInputFactory inputFactory;
+  /**
+   * Number of sentences annotated.
+   */
+  private int sentences = 0;
+  /**
+   * Number of opinions written.
+   */
+  private int opinions = 0;
+
+  /**
+   * A word form of the text layer.
+   */
+  private static final class Token {
+    private String id;
+    private int offset;
+    private int length;
+    private int sent;
+    private String form;
+  }
+
+  /**
+   * A term of the term layer, with the ids of the word forms of its span.
+   */
+  private static final class PendingTerm {
+    private String id;
+    private String type;
+    private String lemma;
+    private String pos;
+    private final List<String> wfIds = new ArrayList<>();
+  }
+
+  /**
+   * The word forms of a sentence and the terms read so far for them.
+   */
+  private static final class Sentence {
+    private final List<Token> tokens = new ArrayList<>();
+    private final Map<String, Token> tokensById = new HashMap<>();
+    private final List<PendingTerm> terms = new ArrayList<>();
+  }
+
+  /**
+   * Construct a streaming annotator.
+   * @param factory the factory of the annotator
+   * @param language the language, null to take it from the document
+   * @param processorName the name of the linguistic processor
+   * @param processorVersion the version of the linguistic processor
+   */
+  public StreamingAnnotator(BatchAnnotator.AnnotatorFactory factory, String language,
+      String processorName, String processorVersion) {
+    this.factory = factory;
+    this.language = language;
+    this.processorName = processorName;
+    this.processorVersion = processorVersion;
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  /**
+   * Set the output format.
+   * @param outputFormat naf (default), tabulated or jsonl
+   */
+  public final void setOutputFormat(final String outputFormat) {
+    this.outputFormat = outputFormat;
+  }
+
+  /**
+   * Get the number of sentences annotated.
+   * @return the number of sentences
+   */
+  public final int getSentences() {
+    return sentences;
+  }
+
+  /**
+   * Get the number of opinions written.
+   * @return the number of opinions
+   */
+  public final int getOpinions() {
+    return opinions;
+  }
+
+  /**
+   * Annotate a NAF document read from a stream, which is first copied to a
+   * temporary file to be read twice.
+   * @param reader the NAF document
+   * @param writer the output, which is not closed
+   * @throws IOException if io problems or the document is badly formatted
+   */
+  public final void annotate(final Reader reader, final Writer writer) throws IOException {
+    File input = File.createTempFile("ixa-pipe-opinion", ".naf");
+    try {
+      try (Writer spool = newWriter(input)) {
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = reader.read(buffer)) >= 0) {
+          spool.write(buffer, 0, n);
+        }
+      }
+      annotate(input, writer);
+    } finally {
+      input.delete();
+    }
+  }
+
+  /**
+   * Annotate a NAF file.
+   * @param input the NAF file
+   * @param writer the output, which is not closed
+   * @throws IOException if io problems or the document is badly formatted
+   */
+  public final void annotate(final File input, final Writer writer) throws IOException {
+    File spool = null;
+    try (Reader textInput = newReader(input); Reader documentInput = newReader(input)) {
+      XMLStreamReader text = inputFactory.createXMLStreamReader(textInput);
+      XMLStreamReader document = inputFactory.createXMLStreamReader(documentInput);
+      if (!OpinionWriter.isOpinionFormat(outputFormat)) {
+        spool = File.createTempFile("ixa-pipe-opinion", ".opinions");
+      }
+      new Pass(text, document, writer, spool).run();
+    } catch (XMLStreamException e) {
+      throw new IOException("Badly formatted NAF document: " + e.getMessage(), e);
+    } finally {
+      if (spool != null) {
+        spool.delete();
+      }
+    }
+  }
+
+  private static Reader newReader(File file) throws IOException {
+    return new BufferedReader(new InputStreamReader(new FileInputStream(file),
+        StandardCharsets.UTF_8));
+  }
+
+  private static Writer newWriter(File file) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+        StandardCharsets.UTF_8));
+  }
+
+  /**
+   * The annotation of one document: the reader of the text layer, the copy
+   * of the document and the sentence being assembled.
+   */
+  private final class Pass {
+
+    private final XMLStreamReader text;
+    private final XMLStreamReader document;
+    private final Writer writer;
+    /**
+     * Whether the document is copied to the output, in the naf format.
+     */
+    private final boolean copy;
+    private boolean startTagOpen = false;
+    /**
+     * Whitespace not written yet, dropped if followed by a skipped element.
+     */
+    private final StringBuilder pendingSpace = new StringBuilder();
+    private final File spoolFile;
+    private Writer spool;
+    private Annotate annotator;
+    private String documentLanguage;
+    private String nafVersion = "v3";
+    /**
+     * The next word form of the text layer, already read.
+     */
+    private Token nextToken;
+    private boolean textEnded = false;
+    private Sentence sentence;
+
+    private Pass(XMLStreamReader text, XMLStreamReader document, Writer writer, File spoolFile) {
+      this.text = text;
+      this.document = document;
+      this.writer = writer;
+      this.spoolFile = spoolFile;
+      this.copy = spoolFile != null;
+    }
+
+    private void run() throws IOException, XMLStreamException {
+      startText();
+      String lang = documentLanguage == null ? language : documentLanguage;
+      if (language != null && documentLanguage != null && !language.equalsIgnoreCase(documentLanguage)) {
+        throw new IOException("Language parameter in NAF and CLI do not match");
+      }
+      annotator = factory.create(lang);
+      documentLanguage = lang;
+      if (spoolFile != null) {
+        spool = newWriter(spoolFile);
+      }
+      try {
+        copyDocument();
+      } finally {
+        if (spool != null) {
+          spool.close();
+        }
+      }
+    }
+
+    /**
+     * Read the root element and move the text reader to the text layer.
+     */
+    private void startText() throws XMLStreamException {
+      while (text.hasNext()) {
+        int event = text.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String name = text.getLocalName();
+          if (name.equals("NAF") || name.equals("KAF")) {
+            documentLanguage = text.getAttributeValue(XMLConstants.XML_NS_URI, "lang");
+            String version = text.getAttributeValue(null, "version");
+            if (version != null) {
+              nafVersion = version;
+            }
+          } else if (name.equals("text")) {
+            return;
+          }
+        }
+      }
+      textEnded = true;
+    }
+
+    /**
+     * Read the next word form of the text layer.
+     * @return the word form, null at the end of the layer
+     */
+    private Token readToken() throws XMLStreamException {
+      while (!textEnded && text.hasNext()) {
+        int event = text.next();
+        if (event == XMLStreamConstants.START_ELEMENT && text.getLocalName().equals("wf")) {
+          Token token = new Token();
+          token.id = text.getAttributeValue(null, "id");
+          token.offset = parseInt(text.getAttributeValue(null, "offset"));
+          token.length = parseInt(text.getAttributeValue(null, "length"));
+          token.sent = parseInt(text.getAttributeValue(null, "sent"));
+          token.form = text.getElementText();
+          return token;
+        } else if (event == XMLStreamConstants.END_ELEMENT && text.getLocalName().equals("text")) {
+          textEnded = true;
+        }
+      }
+      textEnded = true;
+      return null;
+    }
+
+    /**
+     * Read the word forms of the next sentence.
+     * @return the sentence, null at the end of the text layer
+     */
+    private Sentence readSentence() throws XMLStreamException {
+      Token token = nextToken == null ? readToken() : nextToken;
+      if (token == null) {
+        return null;
+      }
+      Sentence next = new Sentence();
+      int sent = token.sent;
+      while (token != null && token.sent == sent) {
+        next.tokens.add(token);
+        next.tokensById.put(token.id, token);
+        token = readToken();
+      }
+      nextToken = token;
+      return next;
+    }
+
+    /**
+     * Copy the document, adding the linguistic processor to the header,
+     * annotating every sentence once its terms are read and writing the
+     * opinions at the end, in place of the existing opinion layer.
+     */
+    private void copyDocument() throws IOException, XMLStreamException {
+      int depth = 0;
+      int skipDepth = 0;
+      boolean headerSeen = false;
+      String layer = null;
+      PendingTerm term = null;
+      boolean inTermSpan = false;
+      copyEvent(document.getEventType());
+      while (document.hasNext()) {
+        int event = document.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          String name = document.getLocalName();
+          if (skipDepth > 0) {
+            continue;
+          }
+          if (depth == 2) {
+            if (!headerSeen) {
+              headerSeen = true;
+              if (!name.equals("nafHeader")) {
+                writeRaw("<nafHeader>\n    " + getProcessorElement() + "\n  </nafHeader>\n  ");
+              }
+            }
+            if (name.equals("opinions")) {
+              skipDepth = depth;
+              pendingSpace.setLength(0);
+              continue;
+            }
+            layer = name;
+          } else if (depth == 3 && "nafHeader".equals(layer) && name.equals("linguisticProcessors")
+              && Incremental.LAYER.equals(document.getAttributeValue(null, "layer"))) {
+            // the processors of the replaced opinions
+            skipDepth = depth;
+            pendingSpace.setLength(0);
+            continue;
+          } else if ("terms".equals(layer)) {
+            if (depth == 3 && name.equals("term")) {
+              term = new PendingTerm();
+              term.id = document.getAttributeValue(null, "id");
+              term.type = document.getAttributeValue(null, "type");
+              term.lemma = document.getAttributeValue(null, "lemma");
+              term.pos = document.getAttributeValue(null, "pos");
+            } else if (depth == 4 && term != null && name.equals("span")) {
+              inTermSpan = true;
+            } else if (depth == 5 && inTermSpan && name.equals("target")) {
+              term.wfIds.add(document.getAttributeValue(null, "id"));
+            }
+          }
+          copyStartElement();
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          String name = document.getLocalName();
+          depth--;
+          if (skipDepth > 0) {
+            if (depth < skipDepth) {
+              skipDepth = 0;
+            }
+            continue;
+          }
+          if (depth == 1 && name.equals("nafHeader")) {
+            writeRaw("  " + getProcessorElement() + "\n  ");
+          } else if (depth == 1 && name.equals("terms")) {
+            annotateSentence();
+            layer = null;
+          } else if (depth == 2 && term != null && name.equals("term")) {
+            addTerm(term);
+            term = null;
+          } else if (depth == 3 && inTermSpan && name.equals("span")) {
+            inTermSpan = false;
+          } else if (depth == 0) {
+            writeOpinions();
+          }
+          copyEndElement();
+        } else if (skipDepth == 0) {
+          copyEvent(event);
+        }
+      }
+    }
+
+    /**
+     * Write a start tag, leaving it open in case the element is empty.
+     */
+    private void copyStartElement() throws IOException {
+      if (!copy) {
+        return;
+      }
+      flushSpace();
+      closeStartTag();
+      writer.write('<');
+      writer.write(getQualifiedName(document.getPrefix(), document.getLocalName()));
+      for (int i = 0; i < document.getNamespaceCount(); i++) {
+        String prefix = document.getNamespacePrefix(i);
+        writeAttribute(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix,
+            document.getNamespaceURI(i));
+      }
+      for (int i = 0; i < document.getAttributeCount(); i++) {
+        writeAttribute(getQualifiedName(document.getAttributePrefix(i),
+            document.getAttributeLocalName(i)), document.getAttributeValue(i));
+      }
+      startTagOpen = true;
+    }
+
+    private void copyEndElement() throws IOException {
+      if (!copy) {
+        return;
+      }
+      flushSpace();
+      if (startTagOpen) {
+        writer.write(" />");
+        startTagOpen = false;
+      } else {
+        writer.write("</");
+        writer.write(getQualifiedName(document.getPrefix(), document.getLocalName()));
+        writer.write('>');
+      }
+    }
+
+    /**
+     * Write any other event of the document.
+     * @param event the type of the event
+     */
+    private void copyEvent(int event) throws IOException {
+      if (!copy) {
+        return;
+      }
+      switch (event) {
+      case XMLStreamConstants.START_DOCUMENT:
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.SPACE:
+        if (document.isWhiteSpace()) {
+          pendingSpace.append(document.getText());
+        } else {
+          flushSpace();
+          closeStartTag();
+          writer.write(CONTENT_ESCAPER.escape(document.getText()));
+        }
+        break;
+      case XMLStreamConstants.CDATA:
+        flushSpace();
+        closeStartTag();
+        writer.write("<![CDATA[");
+        writer.write(document.getText());
+        writer.write("]]>");
+        break;
+      case XMLStreamConstants.COMMENT:
+        flushSpace();
+        closeStartTag();
+        writer.write("<!--");
+        writer.write(document.getText());
+        writer.write("-->");
+        break;
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+        flushSpace();
+        closeStartTag();
+        writer.write("<?");
+        writer.write(document.getPITarget());
+        if (document.getPIData() != null && !document.getPIData().isEmpty()) {
+          writer.write(' ');
+          writer.write(document.getPIData());
+        }
+        writer.write("?>");
+        break;
+      case XMLStreamConstants.END_DOCUMENT:
+        writer.write('\n');
+        break;
+      case XMLStreamConstants.DTD:
+        writer.write(document.getText());
+        writer.write('\n');
+        break;
+      default:
+        break;
+      }
+    }
+
+    private void flushSpace() throws IOException {
+      if (pendingSpace.length() > 0) {
+        closeStartTag();
+        writer.write(pendingSpace.toString());
+        pendingSpace.setLength(0);
+      }
+    }
+
+    private void closeStartTag() throws IOException {
+      if (startTagOpen) {
+        writer.write('>');
+        startTagOpen = false;
+      }
+    }
+
+    private void writeAttribute(String name, String value) throws IOException {
+      writer.write(' ');
+      writer.write(name);
+      writer.write("=\"");
+      writer.write(ATTRIBUTE_ESCAPER.escape(value));
+      writer.write('"');
+    }
+
+    /**
+     * Add a term to its sentence, annotating the sentences before it.
+     * @param term the term
+     */
+    private void addTerm(PendingTerm term) throws IOException, XMLStreamException {
+      if (term.wfIds.isEmpty()) {
+        return;
+      }
+      String first = term.wfIds.get(0);
+      while (sentence == null || !sentence.tokensById.containsKey(first)) {
+        annotateSentence();
+        sentence = readSentence();
+        if (sentence == null) {
+          throw new IOException("The word form " + first + " of term " + term.id
+              + " is not in the text layer or the terms are not in text order");
+        }
+      }
+      sentence.terms.add(term);
+    }
+
+    /**
+     * Annotate the current sentence as a document of its own and write its
+     * opinions.
+     */
+    private void annotateSentence() throws IOException {
+      if (sentence == null || sentence.terms.isEmpty()) {
+        return;
+      }
+      KAFDocument kaf = new KAFDocument(documentLanguage, nafVersion);
+      Map<String, WF> wfs = new HashMap<>();
+      for (Token token : sentence.tokens) {
+        wfs.put(token.id, kaf.newWF(token.id, token.offset, token.length, token.form, token.sent));
+      }
+      for (PendingTerm term : sentence.terms) {
+        List<WF> span = new ArrayList<>();
+        for (String wfId : term.wfIds) {
+          WF wf = wfs.get(wfId);
+          if (wf != null) {
+            span.add(wf);
+          }
+        }
+        kaf.newTerm(term.id, term.type, term.lemma, term.pos, KAFDocument.newWFSpan(span));
+      }
+      sentence = null;
+      annotator.annotate(kaf);
+      sentences++;
+      List<Opinion> sentenceOpinions = kaf.getOpinions();
+      if (spool == null) {
+        new OpinionWriter(outputFormat).write(sentenceOpinions, opinions + 1, writer);
+        opinions += sentenceOpinions.size();
+      } else {
+        StringBuilder xml = new StringBuilder();
+        for (Opinion opinion : sentenceOpinions) {
+          opinions++;
+          appendOpinion(xml, "o" + opinions, opinion);
+        }
+        spool.append(xml);
+      }
+    }
+
+    /**
+     * Write the spooled opinions as the opinion layer.
+     */
+    private void writeOpinions() throws IOException {
+      if (spool == null || opinions == 0) {
+        return;
+      }
+      spool.close();
+      spool = null;
+      flushSpace();
+      closeStartTag();
+      writer.write("  <opinions>\n");
+      try (Reader opinionsReader = newReader(spoolFile)) {
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = opinionsReader.read(buffer)) >= 0) {
+          writer.write(buffer, 0, n);
+        }
+      }
+      writer.write("  </opinions>\n");
+    }
+
+    /**
+     * Write text to the output between the copied events.
+     * @param raw the text
+     */
+    private void writeRaw(String raw) throws IOException {
+      if (copy) {
+        flushSpace();
+        closeStartTag();
+        writer.write(raw);
+      }
+    }
+
+    private String getProcessorElement() {
+      KAFDocument.LinguisticProcessor lp = new KAFDocument(documentLanguage, nafVersion)
+          .addLinguisticProcessor(Incremental.LAYER, processorName, processorVersion);
+      lp.setBeginTimestamp();
+      StringBuilder element = new StringBuilder("<linguisticProcessors layer=\"");
+      element.append(Incremental.LAYER).append("\">\n      <lp");
+      appendAttribute(element, "name", lp.getName());
+      appendAttribute(element, "beginTimestamp", lp.getBeginTimestamp());
+      appendAttribute(element, "version", lp.getVersion());
+      appendAttribute(element, "hostname", lp.getHostname());
+      element.append(" />\n    </linguisticProcessors>");
+      return element.toString();
+    }
+  }
+
+  private static String getQualifiedName(String prefix, String localName) {
+    return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+
+  private static int parseInt(String value) {
+    return value == null ? 0 : Integer.parseInt(value);
+  }
+
+  /**
+   * Append an opinion as NAF, in the format of kaflib.
+   * @param xml the output
+   * @param id the id of the opinion
+   * @param opinion the opinion
+   */
+  private static void appendOpinion(StringBuilder xml, String id, Opinion opinion) {
+    xml.append("    <opinion");
+    appendAttribute(xml, "id", id);
+    xml.append(">\n");
+    if (opinion.hasOpinionHolder()) {
+      OpinionHolder holder = opinion.getOpinionHolder();
+      xml.append("      <opinion_holder");
+      if (holder.hasType()) {
+        appendAttribute(xml, "type", holder.getType());
+      }
+      xml.append(">\n");
+      appendSpan(xml, holder.getTerms());
+      xml.append("      </opinion_holder>\n");
+    }
+    if (opinion.hasOpinionTarget()) {
+      xml.append("      <opinion_target>\n");
+      appendSpan(xml, opinion.getOpinionTarget().getTerms());
+      xml.append("      </opinion_target>\n");
+    }
+    if (opinion.hasOpinionExpression()) {
+      OpinionExpression expression = opinion.getOpinionExpression();
+      xml.append("      <opinion_expression");
+      if (expression.hasPolarity()) {
+        appendAttribute(xml, "polarity", expression.getPolarity());
+      }
+      if (expression.hasStrength()) {
+        appendAttribute(xml, "strength", expression.getStrength());
+      }
+      if (expression.hasSubjectivity()) {
+        appendAttribute(xml, "subjectivity", expression.getSubjectivity());
+      }
+      if (expression.hasSentimentSemanticType()) {
+        appendAttribute(xml, "sentiment_semantic_type", expression.getSentimentSemanticType());
+      }
+      if (expression.hasSentimentProductFeature()) {
+        appendAttribute(xml, "sentiment_product_feature", expression.getSentimentProductFeature());
+      }
+      xml.append(">\n");
+      appendSpan(xml, expression.getTerms());
+      xml.append("      </opinion_expression>\n");
+    }
+    xml.append("    </opinion>\n");
+  }
+
+  private static void appendSpan(StringBuilder xml, List<Term> terms) {
+    StringBuilder comment = new StringBuilder();
+    for (Term term : terms) {
+      if (comment.length() > 0) {
+        comment.append(' ');
+      }
+      comment.append(term.getStr());
+    }
+    xml.append("        <!--").append(comment.toString().replace("--", "- -")).append("-->\n");
+    xml.append("        <span>\n");
+    for (Term term : terms) {
+      xml.append("          <target");
+      appendAttribute(xml, "id", term.getId());
+      xml.append(" />\n");
+    }
+    xml.append("        </span>\n");
+  }
+
+  private static void appendAttribute(StringBuilder xml, String name, String value) {
+    if (value != null) {
+      xml.append(' ').append(name).append("=\"").append(ATTRIBUTE_ESCAPER.escape(value)).append('"');
+    }
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+/**
+ * The tokens of every sentence of a document and the terms of every token,
+ * stored in arrays so that the terms of a span of tokens are a slice of the
+ * sentence terms instead of one lookup per token id. The index is built once
+ * per document and shared by every annotator of the document; documents are
+ * held weakly. The annotators do not change the text and term layers, so the
+ * index is only valid while those layers are not modified.
+ *
+ * In incremental mode, {@link Incremental} marks the sentences whose opinions
+ * are already up to date, which the annotators skip.
+ *
+ * @author ragerri
+ * @version 2018-05-11
+ *
+ */
+public final class TermIndex {
+
+  /**
+   * The indexes of the documents being annotated, compared by identity.
+   */
+  private static final LoadingCache<KAFDocument, TermIndex> indexes = CacheBuilder
+      .newBuilder().weakKeys().build(CacheLoader.from(TermIndex::new));
+
+  /**
+   * The word forms of each sentence.
+   */
+  private final String[][] tokens;
+  /**
+   * The terms of each sentence, in token order; a multiword term appears
+   * once for each of its tokens.
+   */
+  private final Term[][] terms;
+  /**
+   * For each sentence, the position in its terms of the first term of each
+   * token; the extra last element is the number of terms.
+   */
+  private final int[][] termStarts;
+  /**
+   * The index of each sentence by its number in the text layer.
+   */
+  private final Map<Integer, Integer> sentenceIndexes = new HashMap<>();
+  /**
+   * Whether the opinions of each sentence are up to date.
+   */
+  private final boolean[] upToDate;
+
+  private TermIndex(final KAFDocument kaf) {
+    List<List<WF>> sentences = kaf.getSentences();
+    tokens = new String[sentences.size()][];
+    terms = new Term[sentences.size()][];
+    termStarts = new int[sentences.size()][];
+    upToDate = new boolean[sentences.size()];
+    List<Term> sentenceTerms = new ArrayList<>();
+    for (int sent = 0; sent < sentences.size(); sent++) {
+      List<WF> sentence = sentences.get(sent);
+      if (!sentence.isEmpty()) {
+        sentenceIndexes.put(sentence.get(0).getSent(), sent);
+      }
+      String[] sentenceTokens = new String[sentence.size()];
+      int[] starts = new int[sentence.size() + 1];
+      sentenceTerms.clear();
+      for (int i = 0; i < sentence.size(); i++) {
+        WF wf = sentence.get(i);
+        sentenceTokens[i] = wf.getForm();
+        starts[i] = sentenceTerms.size();
+        sentenceTerms.addAll(kaf.getTermsFromWFs(Collections.singletonList(wf.getId())));
+      }
+      starts[sentence.size()] = sentenceTerms.size();
+      tokens[sent] = sentenceTokens;
+      terms[sent] = sentenceTerms.toArray(new Term[sentenceTerms.size()]);
+      termStarts[sent] = starts;
+    }
+  }
+
+  /**
+   * Get the index of a document, building it the first time.
+   * @param kaf the document
+   * @return the index
+   */
+  public static TermIndex of(final KAFDocument kaf) {
+    return indexes.getUnchecked(kaf);
+  }
+
+  /**
+   * Get the number of sentences.
+   * @return the number of sentences
+   */
+  public int getNumSentences() {
+    return tokens.length;
+  }
+
+  /**
+   * Get the word forms of a sentence. The array is shared and must not be
+   * modified.
+   * @param sentence the index of the sentence, from 0
+   * @return the tokens
+   */
+  public String[] getTokens(final int sentence) {
+    return tokens[sentence];
+  }
+
+  /**
+   * Get the terms of a span of tokens of a sentence, as
+   * {@link KAFDocument#getTermsFromWFs(List)} would for their ids.
+   * @param sentence the index of the sentence, from 0
+   * @param start the first token
+   * @param end the token after the last one
+   * @return a new list with the terms
+   */
+  public List<Term> getTerms(final int sentence, final int start, final int end) {
+    int[] starts = termStarts[sentence];
+    return new ArrayList<>(Arrays.asList(terms[sentence]).subList(starts[start], starts[end]));
+  }
+
+  /**
+   * Get the terms of a whole sentence.
+   * @param sentence the index of the sentence, from 0
+   * @return a new list with the terms
+   */
+  public List<Term> getTerms(final int sentence) {
+    return new ArrayList<>(Arrays.asList(terms[sentence]));
+  }
+
+  /**
+   * Get the index of the sentence of a term.
+   * @param term the term
+   * @return the index of its sentence, from 0, or -1 if not in the document
+   */
+  public int getSentence(final Term term) {
+    Integer sent = sentenceIndexes.get(term.getSent());
+    return sent == null ? -1 : sent;
+  }
+
+  /**
+   * Mark a sentence as already having up to date opinions.
+   * @param sentence the index of the sentence, from 0
+   */
+  void markUpToDate(final int sentence) {
+    upToDate[sentence] = true;
+  }
+
+  /**
+   * Whether the opinions of a sentence are up to date, in which case the
+   * annotators skip it.
+   * @param sentence the index of the sentence, from 0
+   * @return true if the sentence need not be annotated
+   */
+  public boolean isUpToDate(final int sentence) {
+    return upToDate[sentence];
+  }
+
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.opinion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.JDOMException;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.WF;
+
+/**
+ * Warm-up of a server before it starts listening. A corpus of NAF documents,
+ * given by the user or generated, is parsed, annotated with every stage of
+ * the pipelines and serialized several times by as many threads as the
+ * server has workers, so that the JIT compiles the feature extraction and
+ * decoding code before the first request arrives. The sentence results
+ * cache is emptied after every pass, so that the models really run, and the
+ * metrics are reset at the end.
+ *
+ * @author ragerri
+ * @version 2018-05-19
+ *
+ */
+public final class WarmUp {
+
+  /**
+   * The words of the generated sentences.
+   */
+  private static final String[] WORDS = { "The", "the", "food", "service", "staff", "waiter",
+      "was", "were", "is", "not", "very", "really", "great", "good", "bad", "terrible", "delicious",
+      "slow", "friendly", "rude", "cheap", "expensive", "price", "menu", "wine", "place", "and",
+      "but", "with", "for", "a", "we", "I", "it", "our", "table", "dinner", "pizza", "dessert",
+      "atmosphere", "ambience", "music", "loud", "nice", "would", "recommend", "again", "," };
+  private static final int DOCUMENTS = 40;
+  private static final int SENTENCES = 8;
+
+  private WarmUp() {
+  }
+
+  /**
+   * Warm up the pipelines of a server, if the warmup server property is
+   * positive.
+   * @param annotators the pipelines
+   * @param serverProperties the threads, warmup (number of passes over the
+   *          corpus) and warmupCorpus (file with concatenated NAF documents,
+   *          a generated corpus if not given) properties
+   * @param language the language of the generated corpus
+   * @throws IOException if the corpus cannot be read or annotated
+   */
+  public static void run(final AnnotatorPool annotators, final Properties serverProperties,
+      final String language) throws IOException {
+    int passes = Integer.parseInt(serverProperties.getProperty("warmup", "0"));
+    if (passes <= 0) {
+      return;
+    }
+    String corpus = serverProperties.getProperty("warmupCorpus");
+    List<String> documents = corpus == null ? generate(language) : read(new File(corpus));
+    int threads = Integer.parseInt(serverProperties.getProperty("threads"));
+    System.out.println("-> Warming up with " + passes + " passes over " + documents.size()
+        + " documents...");
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int pass = 0; pass < passes; pass++) {
+        List<Future<?>> results = new ArrayList<>(documents.size());
+        for (String document : documents) {
+          results.add(executor.submit(() -> {
+            annotate(annotators, document);
+            return null;
+          }));
+        }
+        for (Future<?> result : results) {
+          result.get();
+        }
+        ModelRegistry.invalidateSentenceCaches();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while warming up", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Warm-up failed: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    Metrics.get().reset();
+    System.out.println("-> Warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        + " ms");
+  }
+
+  /**
+   * Parse, annotate and serialize a document as a request would.
+   */
+  private static void annotate(AnnotatorPool annotators, String document)
+      throws IOException, JDOMException, InterruptedException {
+    KAFDocument kaf = NAFSerializer.read(new StringReader(document));
+    AnnotatorPool.Pooled pooled = annotators.take();
+    try {
+      pooled.getAnnotator().annotate(kaf);
+    } finally {
+      annotators.release(pooled);
+    }
+    NAFSerializer.write(kaf, new StringWriter());
+  }
+
+  /**
+   * Read a corpus of NAF documents, each one ending with a {@code </NAF>}
+   * or {@code <ENDOFDOCUMENT>} line.
+   * @param corpus the file
+   * @return the documents
+   * @throws IOException if io problems
+   */
+  private static List<String> read(File corpus) throws IOException {
+    List<String> documents = new ArrayList<>();
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(corpus), StandardCharsets.UTF_8))) {
+      String document;
+      while ((document = BatchAnnotator.readDocument(breader)) != null) {
+        documents.add(document);
+      }
+    }
+    if (documents.isEmpty()) {
+      throw new IOException("No documents in the warm-up corpus " + corpus);
+    }
+    return documents;
+  }
+
+  /**
+   * Generate a corpus of documents with random sentences, always the same.
+   * @param language the language of the documents
+   * @return the documents
+   */
+  private static List<String> generate(String language) {
+    Random random = new Random(42);
+    List<String> documents = new ArrayList<>(DOCUMENTS);
+    for (int doc = 0; doc < DOCUMENTS; doc++) {
+      KAFDocument kaf = new KAFDocument(language, "v3");
+      int offset = 0;
+      for (int sent = 1; sent <= SENTENCES; sent++) {
+        int length = 5 + random.nextInt(20);
+        for (int i = 0; i <= length; i++) {
+          String form = i == length ? "." : WORDS[random.nextInt(WORDS.length)];
+          WF wf = kaf.newWF(offset, form, sent);
+          kaf.newTerm("open", form.toLowerCase(Locale.ROOT), "N",
+              KAFDocument.newWFSpan(new ArrayList<>(Collections.singletonList(wf))));
+          offset += form.length() + 1;
+        }
+      }
+      documents.add(kaf.toString());
+    }
+    return documents;
+  }
+
+}